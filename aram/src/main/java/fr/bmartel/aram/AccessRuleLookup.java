@@ -0,0 +1,67 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.Shareable;
+
+/**
+ * Shareable interface of the access rule master for on-card consumers.
+ * <p>
+ * Applets on the same card get this object with {@link javacard.framework.JCSystem#getAppletShareableInterfaceObject}
+ * using parameter {@link AccessRuleMaster#SHAREABLE_LOOKUP} and query the rules directly instead of sending
+ * GET DATA commands. The buffer must be accessible from the access rule master context, for instance the
+ * APDU buffer.
+ *
+ * @author Bertrand Martel
+ */
+public interface AccessRuleLookup extends Shareable {
+
+    /**
+     * Get the rule (AR-DO value) stored for an aid & hash.
+     *
+     * @param buf     buffer holding the aid & hash and receiving the rule
+     * @param aidOfs  offset for the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset for the hash
+     * @param hashLen length of the hash
+     * @param ruleOfs offset where the rule is written
+     * @return length of the rule or -1 if no rule is stored for this aid & hash or if a length is out of range
+     */
+    short getRule(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short ruleOfs);
+
+    /**
+     * Check if the rule stored for an aid & hash grants access to a command, using the APDU filters of
+     * its APDU-AR-DO.
+     *
+     * @param buf       buffer holding the aid, hash & command header
+     * @param aidOfs    offset for the aid
+     * @param aidLen    length of the aid
+     * @param hashOfs   offset for the hash
+     * @param hashLen   length of the hash
+     * @param headerOfs offset for the command header (CLA INS P1 P2)
+     * @return true if access is allowed, false if it is denied, if no rule is stored for this aid & hash or if a
+     * length is out of range
+     */
+    boolean isAllowed(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short headerOfs);
+}
@@ -24,6 +24,7 @@
 package fr.bmartel.aram;
 
 import javacard.framework.*;
+import javacard.security.Checksum;
 import javacard.security.RandomData;
 import org.globalplatform.Application;
 
@@ -43,37 +44,208 @@ public class AccessRuleMaster extends Applet implements Application {
     public final static short SIZE_HASH = 20;
     public final static short SIZE_RULE = (short) (2 + (20 * 8));
 
+    /**
+     * largest AR-DO value of a rule, data object lengths are coded on one byte.
+     */
+    public final static short MAX_AR_DO = (short) 0x7F;
+
+    /**
+     * largest AR-DO value of a Command-Store-AR-DO, which also holds the E2, E3 headers & an empty REF-DO
+     * (E1 04 4F 00 C1 00) in its one byte length.
+     */
+    final static short MAX_STORE_AR_DO = (short) (MAX_AR_DO - 10);
+
     /**
      * APDU data size.
      */
     public final static short APDU_CHUNK = (short) 255;
 
+    /**
+     * maximum number of chunk digests in a GET DATA DF36 response.
+     */
+    public final static short CHUNK_DIGESTS = 31;
+
+    /**
+     * parameter of getShareableInterfaceObject for the rule lookup interface.
+     */
+    public final static byte SHAREABLE_LOOKUP = 0;
+
+    /**
+     * maximum number of stored rules.
+     */
+    public final static short MAX_RULES = (short) 256;
+
+    /**
+     * persistent memory needed by a rule store in the worst case (new entry, aid group, hash & rule slots).
+     */
+    private final static short STORE_MEMORY = (short) (SIZE_AID + SIZE_HASH + SIZE_RULE + 64);
+
+    /**
+     * persistent writes logged by the transaction of a rule store, aid trie excepted : new entry (8), aid group
+     * (6), trie leaf (2), group links (5), hash slot (7), hash links (5), rule slot (11), rule reference (1)
+     * and REF-DO filter bits (2 x 3). Values are copied non atomically into the new slots and are not logged.
+     */
+    private final static short STORE_WRITES = (short) 51;
+
+    /**
+     * persistent memory needed by a merge into an existing rule in the worst case (new rule slot).
+     */
+    private final static short MERGE_MEMORY = (short) (SIZE_RULE + 16);
+
+    /**
+     * persistent writes logged by the transaction of a merge into an existing rule : new rule slot (11),
+     * released rule slot (5) and rule reference (1).
+     */
+    private final static short MERGE_WRITES = (short) 17;
+
+    /**
+     * persistent writes logged for each aid trie node allocated by a rule store.
+     */
+    private final static short TRIE_NODE_WRITES = (short) 7;
+
+    /**
+     * commit buffer used by a logged write : the value (up to 2 bytes) and the address & length header
+     * (implementation dependent, 4 bytes assumed).
+     */
+    private final static short COMMIT_PER_WRITE = (short) 6;
+
+    /**
+     * GET ALL/NEXT cursor : total length of data, chunk index to send for next GET NEXT command, response
+     * tag, source of REF-AR-DO and number of rule entries of a GET SPECIFIC or batch stream.
+     */
+    private final static byte CURSOR_LENGTH = 0;
+    private final static byte CURSOR_NEXT = 1;
+    private final static byte CURSOR_TAG = 2;
+    private final static byte CURSOR_MODE = 3;
+    private final static byte CURSOR_COUNT = 4;
+    private final static byte CURSOR_SIZE = 5;
+
+    /**
+     * chunk digest cache : set when the digests are valid, store version & number of GET ALL chunks they were
+     * computed for and index of the chunk of the first digest.
+     */
+    private final static byte DIGEST_VALID = 0;
+    private final static byte DIGEST_VERSION = 1;
+    private final static byte DIGEST_CHUNKS = 2;
+    private final static byte DIGEST_FIRST = 3;
+    private final static byte DIGEST_SIZE = 4;
+
+    /**
+     * stream sources for GET ALL/NEXT.
+     */
+    private final static byte STREAM_ALL = 0;
+    private final static byte STREAM_AID_PREFIX = 1;
+    private final static byte STREAM_HEAT = 2;
+    private final static byte STREAM_ENTRIES = 3;
+    private final static byte STREAM_HASH = 4;
+
+    /**
+     * maximum number of REF-DO in a batch query.
+     */
+    public final static short BATCH_KEYS = 16;
+
+    /**
+     * maximum number of recycled objects dropped at deselect.
+     */
+    private final static short COMPACT_BUDGET_DESELECT = 16;
+
+    /**
+     * number of recycled objects kept for reuse by the compaction at deselect.
+     */
+    private final static short COMPACT_RESERVE_DESELECT = 32;
+
     /**
      * the random refresh tag.
      */
     private byte[] refreshTag;
 
     /**
-     * current offset for GET ALL/NEXT.
+     * version of the rule store, incremented by each successful store, delete & reorder of the rules : in the
+     * transaction of the change, or right before the change once the command is checked when it is made of
+     * several atomic steps (a tear then only causes an extra increment).
      */
-    private short dataOffset;
+    private short storeVersion;
+
+    /**
+     * cursor of the current GET ALL/NEXT stream, cleared on deselect.
+     */
+    private short[] cursor;
     /**
-     * total length of data for GET ALL/NEXT.
+     * filter of the current stream (length followed by value).
      */
-    private short nextLength;
+    private byte[] streamFilter;
+
+    /**
+     * rule entries of a GET SPECIFIC or batch stream (null if not found), hash slot of a hash stream.
+     */
+    private Object[] streamEntry;
+
+    /**
+     * rule lookup shared with the other applets.
+     */
+    private AccessRuleLookup lookup;
+
+    /**
+     * AR-DO resulting from a merge or a partial delete, sized for the merge of two AR-DOs (the result is
+     * checked against MAX_AR_DO before being stored).
+     */
+    private byte[] ruleBuffer;
+
     /**
-     * current chunk index to send for next GET NEXT command.
+     * CRC32 of the GET ALL chunks.
      */
-    private short currentNext;
+    private Checksum chunkChecksum;
+
+    /**
+     * 4 bytes digest of up to CHUNK_DIGESTS GET ALL chunks, cleared on deselect.
+     */
+    private byte[] chunkDigests;
+
+    /**
+     * state of the chunk digest cache, cleared on deselect.
+     */
+    private short[] digestState;
 
     private AccessRuleMaster() {
         refreshTag = new byte[8];
+        lookup = new RuleLookup();
+        ruleBuffer = JCSystem.makeTransientByteArray((short) (MAX_AR_DO * 2), JCSystem.CLEAR_ON_DESELECT);
+        chunkChecksum = Checksum.getInstance(Checksum.ALG_ISO3309_CRC32, false);
+        chunkDigests = JCSystem.makeTransientByteArray((short) (CHUNK_DIGESTS * 4), JCSystem.CLEAR_ON_DESELECT);
+        digestState = JCSystem.makeTransientShortArray(DIGEST_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        cursor = JCSystem.makeTransientShortArray(CURSOR_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        streamFilter = JCSystem.makeTransientByteArray((short) (1 + SIZE_AID), JCSystem.CLEAR_ON_DESELECT);
+        streamEntry = JCSystem.makeTransientObjectArray(BATCH_KEYS, JCSystem.CLEAR_ON_DESELECT);
     }
 
     public static void install(byte[] bArray, short bOffset, byte bLength) {
         new AccessRuleMaster().register();
     }
 
+    /**
+     * Get the rule lookup interface for the other applets.
+     *
+     * @param clientAID aid of the client applet
+     * @param parameter {@link #SHAREABLE_LOOKUP}
+     * @return rule lookup or null for an unknown parameter
+     */
+    public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
+        if (parameter == SHAREABLE_LOOKUP) {
+            return lookup;
+        }
+        return null;
+    }
+
+    /**
+     * Drop a bounded number of the recycled objects in excess of a reserve & save the hit/operation counters
+     * when the applet is deselected.
+     */
+    public void deselect() {
+        RuleEntry.compactAbove(COMPACT_RESERVE_DESELECT, COMPACT_BUDGET_DESELECT);
+        HeatCounter.flush();
+        Telemetry.flush();
+    }
+
     public void process(APDU apdu) {
         if (selectingApplet()) {
             return;
@@ -91,6 +263,9 @@ public class AccessRuleMaster extends Applet implements Application {
                     ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
                 processCmdStoreData(APDU.getCurrentAPDUBuffer());
+                if (buffer[ISO7816.OFFSET_CDATA] == (byte) 0xF0) {
+                    sendStoreCapacity(apdu);
+                }
                 break;
             case INS_GET_DATA:
                 processCmdGetData();
@@ -109,6 +284,7 @@ public class AccessRuleMaster extends Applet implements Application {
 
         if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x40) {
             //get all
+            Telemetry.count(Telemetry.GET_ALL);
             processGetAll();
         } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x50) {
             // get specific
@@ -119,6 +295,43 @@ public class AccessRuleMaster extends Applet implements Application {
         } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x60) {
             //get next
             processGetNext();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x70) {
+            //get by aid prefix (proprietary)
+            processGetAidPrefix((short) 0xFF70, APDU.getCurrentAPDU().setIncomingAndReceive());
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x71) {
+            //get effective rule (proprietary)
+            processGetResolved();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x72) {
+            //get batch of REF-DO (proprietary)
+            processGetBatch();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xFF && buf[ISO7816.OFFSET_P2] == (byte) 0x73) {
+            //get by hash (proprietary)
+            processGetHash();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x30) {
+            //get lookup cache counters (proprietary)
+            processGetCacheStats();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x31) {
+            //get usage report (proprietary)
+            processGetUsage();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x32) {
+            //get operation counters (proprietary)
+            processGetCounters();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x33) {
+            //get rule heat listing (proprietary)
+            HeatCounter.flush();
+            startStream((short) 0xDF33, STREAM_HEAT);
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x34) {
+            //get APDU access decision (proprietary)
+            processGetAccess();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x35) {
+            //get summary (proprietary)
+            processGetSummary();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x36) {
+            //get GET ALL chunk digests (proprietary)
+            processGetChunkDigests();
+        } else if (buf[ISO7816.OFFSET_P1] == (byte) 0xDF && buf[ISO7816.OFFSET_P2] == (byte) 0x37) {
+            //get GET ALL chunk by index (proprietary)
+            processGetChunk();
         } else {
             ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
@@ -126,55 +339,267 @@ public class AccessRuleMaster extends Applet implements Application {
 
     /**
      * process GET DATA ALL (p23 & p25 Secure Element Access Control Version 1.0).
+     * <p>
+     * Command data is optional, an AID-REF-DO holding an AID or a RID restricts the list to the REF-AR-DO
+     * with an AID starting with this prefix (proprietary).
      */
     private void processGetAll() {
+        short lc = APDU.getCurrentAPDU().setIncomingAndReceive();
+        if (lc != 0) {
+            processGetAidPrefix((short) 0xFF40, lc);
+        } else {
+            startStream((short) 0xFF40, STREAM_ALL);
+        }
+    }
+
+    /**
+     * process GET DATA by AID prefix (proprietary).
+     * <p>
+     * Command data is an AID-REF-DO holding the AID prefix (for instance a RID), response is the list of
+     * REF-AR-DO with an AID starting with this prefix, streamed like GET ALL. 6A80 is returned when the
+     * AID-REF-DO length is longer than an AID or does not match the command data length.
+     *
+     * @param tag response tag
+     * @param lc  length of the received command data
+     */
+    private void processGetAidPrefix(short tag, short lc) {
 
         byte[] buf = APDU.getCurrentAPDUBuffer();
 
-        buf[0] = (byte) 0xFF;
-        buf[1] = (byte) 0x40;
+        if (lc == 0 || lc != (short) (buf[ISO7816.OFFSET_LC] & 0xFF))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        RuleEntry entry = RuleEntry.getFirst();
+        short ofs = ISO7816.OFFSET_CDATA;
+        short len = buf[(short) (ofs + 1)];
+        if (len < 0 || len > SIZE_AID || (short) (len + 2) != lc)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        checkTLV(buf, ofs, (byte) 0x4F, SIZE_AID);
+        Util.arrayCopyNonAtomic(buf, (short) (ofs + 1), streamFilter, (short) 0, (short) (len + 1));
 
-        short offset = 2;
-        if (entry == null) {
-            buf[offset++] = 0;
-            APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, (short) 3);
+        startStream(tag, STREAM_AID_PREFIX);
+    }
+
+    /**
+     * Get the first REF-AR-DO entry of a stream.
+     *
+     * @param mode stream source
+     * @return rule entry or null if the stream is empty
+     */
+    private RuleEntry streamFirst(byte mode) {
+        if (mode == STREAM_HASH) {
+            return streamEntry[0] == null ? null : RuleEntry.getHashFirst((HashSlot) streamEntry[0]);
+        }
+        if (mode == STREAM_AID_PREFIX) {
+            return streamGroup(AidTrie.firstGroup(streamFilter, (short) 1, streamFilter[0]));
+        }
+        return RuleEntry.getFirst();
+    }
+
+    /**
+     * Get the first REF-AR-DO entry of an aid group or of the next matching groups.
+     *
+     * @param group first aid group to check
+     * @return rule entry or null at the end of the stream
+     */
+    private RuleEntry streamGroup(AidGroup group) {
+        while (group != null) {
+            RuleEntry entry = RuleEntry.getGroupFirst(group);
+            if (entry != null)
+                return entry;
+            group = AidTrie.nextGroup(group, streamFilter, (short) 1, streamFilter[0]);
+        }
+        return null;
+    }
+
+    /**
+     * Get the next REF-AR-DO entry of a stream.
+     *
+     * @param mode  stream source
+     * @param entry current rule entry
+     * @return rule entry or null at the end of the stream
+     */
+    private RuleEntry streamNext(byte mode, RuleEntry entry) {
+        if (mode == STREAM_HASH) {
+            return entry.getHashNext();
+        }
+        if (mode == STREAM_AID_PREFIX) {
+            if (entry.getGroupNext() != null)
+                return entry.getGroupNext();
+            return streamGroup(AidTrie.nextGroup(entry.getGroup(), streamFilter, (short) 1, streamFilter[0]));
+        }
+        return entry.getNext();
+    }
+
+    /**
+     * Get the length of the tag & BER length header of a stream.
+     *
+     * @param length length of stream data
+     * @return header length
+     */
+    private short getStreamHeaderLength(short length) {
+        if (length < (short) 0x80) {
+            return 3;
+        } else if (length < (short) 0xFF) {
+            return 4;
+        }
+        return 5;
+    }
+
+    /**
+     * Write the tag & BER length header of a stream.
+     *
+     * @param buf    output buffer
+     * @param tag    response tag
+     * @param length length of stream data
+     * @return header length
+     */
+    private short buildStreamHeader(byte[] buf, short tag, short length) {
+        short header = getStreamHeaderLength(length);
+        Util.setShort(buf, (short) 0, tag);
+        if (header == 3) {
+            buf[2] = (byte) length;
+        } else if (header == 4) {
+            buf[2] = (byte) 0x81;
+            buf[3] = (byte) length;
         } else {
-            dataOffset = 0;
-            while (entry != null) {
-                short len = AramUtils.buildRefArDo(dataOffset, (short) (dataOffset + APDU_CHUNK), buf, (short) (offset + 1), entry);
-                offset += len;
-                entry = entry.getNext();
+            buf[2] = (byte) 0x82;
+            Util.setShort(buf, (short) 3, length);
+        }
+        return header;
+    }
+
+    /**
+     * Start a new stream of REF-AR-DO and send its first chunk.
+     *
+     * @param tag  response tag
+     * @param mode stream source
+     */
+    private void startStream(short tag, byte mode) {
+        cursor[CURSOR_TAG] = tag;
+        cursor[CURSOR_MODE] = mode;
+
+        cursor[CURSOR_LENGTH] = getStreamLength(mode);
+        cursor[CURSOR_NEXT] = 0;
+        sendStreamChunk();
+    }
+
+    /**
+     * Get the length of a stream item : REF-AR-DO, empty REF-AR-DO for a REF-DO not found or heat listing item.
+     *
+     * @param mode  stream source
+     * @param entry rule entry
+     * @return item length
+     */
+    private short getStreamItemLength(byte mode, RuleEntry entry) {
+        if (entry == null) {
+            return 2;
+        }
+        if (mode == STREAM_HEAT) {
+            return AramUtils.getHeatItemLength(entry);
+        }
+        return AramUtils.getRefArDoLength(entry);
+    }
+
+    /**
+     * Get the length of the REF-AR-DO list of a stream.
+     *
+     * @param mode stream source
+     * @return length of the response data without header
+     */
+    private short getStreamLength(byte mode) {
+        short length = 0;
+        if (mode == STREAM_ENTRIES) {
+            for (short i = 0; i < cursor[CURSOR_COUNT]; i++) {
+                length += getStreamItemLength(mode, (RuleEntry) streamEntry[i]);
             }
-            offset++;
-
-            short length = (short) (offset - 3);
-
-            currentNext = 1;
-            nextLength = length;
-
-            if (length < (short) 0x80) {
-                buf[2] = (byte) length;
-                dataOffset = -3;
-                APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, offset);
-            } else if (length < (short) 0xFF) {
-                Util.arrayCopy(buf, (short) 3, buf, (short) 4, (short) (buf.length - 4));
-                buf[2] = (byte) 0x81;
-                buf[3] = (byte) length;
-                dataOffset = -4;
-                APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, (short) (offset + 1));
-            } else if (length < (short) 0x7FFF) {
-                Util.arrayCopy(buf, (short) 2, buf, (short) 4, (short) (buf.length - 4));
-                buf[2] = (byte) 0x82;
-                buf[3] = (byte) ((length >> 8) & 0xFF);
-                buf[4] = (byte) (length & 0xFF);
-                dataOffset = -5;
-                APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, APDU_CHUNK);
-            } else {
+            return length;
+        }
+        for (RuleEntry entry = streamFirst(mode); entry != null; entry = streamNext(mode, entry)) {
+            length += getStreamItemLength(mode, entry);
+            if (length < 0 || length > (short) (0x7FFF - 5)) {
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
         }
+        return length;
+    }
+
+    /**
+     * Write the part of a stream item falling in the current chunk.
+     *
+     * @param buf           apdu buffer
+     * @param ofs           offset of the item in the stream data
+     * @param dataOffset    start of the current chunk in the stream data
+     * @param dataOffsetMax end of the current chunk in the stream data
+     * @param mode          stream source
+     * @param entry         rule entry or null for a REF-DO not found
+     * @return offset of the next item
+     */
+    private short buildStreamItem(byte[] buf, short ofs, short dataOffset, short dataOffsetMax, byte mode, RuleEntry entry) {
+        short len = getStreamItemLength(mode, entry);
+        if ((short) (ofs + len) > dataOffset) {
+            if (entry == null) {
+                AramUtils.buildEmptyRefArDo(dataOffset, dataOffsetMax, buf, ofs);
+            } else if (mode == STREAM_HEAT) {
+                AramUtils.buildHeatItem(dataOffset, dataOffsetMax, buf, ofs, entry);
+            } else {
+                AramUtils.buildRefArDo(dataOffset, dataOffsetMax, buf, ofs, entry);
+            }
+        }
+        return (short) (ofs + len);
+    }
+
+    /**
+     * Send the current chunk of the stream (APDU_CHUNK bytes max), header included in first chunk.
+     */
+    private void sendStreamChunk() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        short sent = buildStreamChunk(buf, (byte) cursor[CURSOR_MODE], cursor[CURSOR_TAG], cursor[CURSOR_LENGTH],
+                cursor[CURSOR_NEXT]);
+        cursor[CURSOR_NEXT]++;
+
+        Telemetry.count(Telemetry.BYTES_STREAMED, sent);
+        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, sent);
+    }
+
+    /**
+     * Build a chunk of a stream (APDU_CHUNK bytes max), header included in first chunk.
+     *
+     * @param buf    output buffer
+     * @param mode   stream source
+     * @param tag    response tag
+     * @param length length of the response data without header
+     * @param index  chunk index
+     * @return chunk length
+     */
+    private short buildStreamChunk(byte[] buf, byte mode, short tag, short length, short index) {
+
+        short header = getStreamHeaderLength(length);
+        short start = (short) (index * APDU_CHUNK);
+        short remaining = (short) (header + length - start);
+
+        if (remaining <= 0) {
+            ISOException.throwIt((short) 0x6A88);
+        }
+
+        if (index == 0) {
+            buildStreamHeader(buf, tag, length);
+        }
+
+        short dataOffset = (short) (start - header);
+        short dataOffsetMax = (short) (dataOffset + APDU_CHUNK);
+        short ofs = 0;
+        if (mode == STREAM_ENTRIES) {
+            for (short i = 0; i < cursor[CURSOR_COUNT] && ofs < dataOffsetMax; i++) {
+                ofs = buildStreamItem(buf, ofs, dataOffset, dataOffsetMax, mode, (RuleEntry) streamEntry[i]);
+            }
+        } else {
+            for (RuleEntry entry = streamFirst(mode); entry != null && ofs < dataOffsetMax; entry = streamNext(mode, entry)) {
+                ofs = buildStreamItem(buf, ofs, dataOffset, dataOffsetMax, mode, entry);
+            }
+        }
+        return remaining > APDU_CHUNK ? APDU_CHUNK : remaining;
     }
 
     /**
@@ -201,16 +626,16 @@ public class AccessRuleMaster extends Applet implements Application {
                 (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
                 (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
 
-        if (re == null)
+        if (re == null) {
+            Telemetry.count(Telemetry.GET_SPECIFIC_MISS);
             ISOException.throwIt((short) 0x6A88);
+        }
+        Telemetry.count(Telemetry.GET_SPECIFIC_HIT);
+        HeatCounter.hit(re);
 
-        buf[0] = (byte) 0xFF;
-        buf[1] = (byte) 0x50;
-
-        short len = AramUtils.buildRefArDo((short) 0, APDU_CHUNK, buf, (short) 3, re);
-        buf[2] = (byte) len;
-
-        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, (short) (len + 3));
+        streamEntry[0] = re;
+        cursor[CURSOR_COUNT] = 1;
+        startStream((short) 0xFF50, STREAM_ENTRIES);
     }
 
     /**
@@ -229,46 +654,382 @@ public class AccessRuleMaster extends Applet implements Application {
     }
 
     /**
-     * process GET DATA NEXT (p23 Secure Element Access Control Version 1.0).
+     * process GET DATA lookup cache counters (proprietary).
+     * <p>
+     * Response is DF30 04 followed by the hit count and the miss count of the REF-DO lookup cache.
      */
-    private void processGetNext() {
+    private void processGetCacheStats() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x30;
+        buf[2] = (byte) 4;
+
+        Util.setShort(buf, (short) 3, LookupCache.getHits());
+        Util.setShort(buf, (short) 5, LookupCache.getMisses());
+        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, (short) 7);
+    }
+
+    /**
+     * Get the effective REF-AR-DO for an aid & hash, resolving the wildcard rules (empty AID-REF-DO or
+     * HASH-REF-DO) from the most specific to the least specific. Command data is a REF-DO, the response is
+     * FF71 followed by the REF-AR-DO of the rule that applies (supports get next), 6A88 is returned if no
+     * rule applies.
+     */
+    private void processGetResolved() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        APDU apdu = APDU.getCurrentAPDU();
+
+        if (apdu.setIncomingAndReceive() != (short) (buf[ISO7816.OFFSET_LC] & 0xFF))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short ofs = ISO7816.OFFSET_CDATA;
+
+        checkTLV(buf, ofs, (byte) 0xE1, (short) (4 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH));
+        short ofsAidRefDo = (short) (ofs + 2);
+        short ofsHashRefDo = checkTLV(buf, ofsAidRefDo, (byte) 0x4F, (AccessRuleMaster.SIZE_AID));
+        checkTLV(buf, ofsHashRefDo, (byte) 0xC1, (AccessRuleMaster.SIZE_HASH));
 
-        short next = (short) (nextLength / APDU_CHUNK);
-        if ((nextLength % APDU_CHUNK) != 0) {
-            next++;
+        RuleEntry re = RuleEntry.resolve(buf,
+                (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
+
+        if (re == null) {
+            Telemetry.count(Telemetry.GET_SPECIFIC_MISS);
+            ISOException.throwIt((short) 0x6A88);
         }
+        Telemetry.count(Telemetry.GET_SPECIFIC_HIT);
+        HeatCounter.hit(re);
+
+        streamEntry[0] = re;
+        cursor[CURSOR_COUNT] = 1;
+        startStream((short) 0xFF71, STREAM_ENTRIES);
+    }
+
+    /**
+     * Get all the REF-AR-DO of a certificate hash. Command data is a HASH-REF-DO, the response is FF73
+     * followed by the REF-AR-DO referencing this hash (supports get next). The rules are listed from the
+     * hash slot, without going through the rules of other hashes.
+     */
+    private void processGetHash() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        APDU apdu = APDU.getCurrentAPDU();
 
-        if (currentNext < next) {
+        short lc = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+        if (apdu.setIncomingAndReceive() != lc)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-            byte[] buf = APDU.getCurrentAPDUBuffer();
+        short ofs = ISO7816.OFFSET_CDATA;
+        if (checkTLV(buf, ofs, (byte) 0xC1, SIZE_HASH) != (short) (ofs + lc))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-            RuleEntry entry = RuleEntry.getFirst();
+        streamEntry[0] = HashSlot.search(buf, (short) (ofs + 2), buf[(short) (ofs + 1)]);
+        startStream((short) 0xFF73, STREAM_HASH);
+    }
 
-            short offset = 0;
-            dataOffset += APDU_CHUNK;
+    /**
+     * Get the REF-AR-DO of several REF-DO in one command. Command data is a list of REF-DO (up to
+     * BATCH_KEYS), the response is FF72 followed by one REF-AR-DO per REF-DO in the same order, an empty
+     * REF-AR-DO (E2 00) marks a REF-DO without rule (supports get next).
+     */
+    private void processGetBatch() {
 
-            short currentLength = 0;
+        byte[] buf = APDU.getCurrentAPDUBuffer();
 
-            short diff = (short) (nextLength - currentNext * APDU_CHUNK);
+        APDU apdu = APDU.getCurrentAPDU();
+
+        short lc = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+        if (apdu.setIncomingAndReceive() != lc)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-            if (diff > APDU_CHUNK) {
-                currentLength = APDU_CHUNK;
+        short ofs = ISO7816.OFFSET_CDATA;
+        short end = (short) (ofs + lc);
+        short count = 0;
+
+        while (ofs < end) {
+            if (count == BATCH_KEYS)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            short next = checkTLV(buf, ofs, (byte) 0xE1, (short) (4 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH));
+            short ofsAidRefDo = (short) (ofs + 2);
+            short ofsHashRefDo = checkTLV(buf, ofsAidRefDo, (byte) 0x4F, (AccessRuleMaster.SIZE_AID));
+            checkTLV(buf, ofsHashRefDo, (byte) 0xC1, (AccessRuleMaster.SIZE_HASH));
+
+            RuleEntry re = RuleEntry.searchAidHash(buf,
+                    (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                    (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
+            if (re == null) {
+                Telemetry.count(Telemetry.GET_SPECIFIC_MISS);
             } else {
-                short header = (short) (APDU_CHUNK - ((short) (dataOffset % APDU_CHUNK)));
-                currentLength = (short) (diff + header);
+                Telemetry.count(Telemetry.GET_SPECIFIC_HIT);
+                HeatCounter.hit(re);
             }
+            streamEntry[count++] = re;
+            ofs = next;
+        }
+        if (ofs != end)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-            while (entry != null) {
-                short len = AramUtils.buildRefArDo(dataOffset, (short) (dataOffset + APDU_CHUNK), buf, offset, entry);
-                offset += len;
-                entry = entry.getNext();
-            }
-            currentNext++;
+        cursor[CURSOR_COUNT] = count;
+        startStream((short) 0xFF72, STREAM_ENTRIES);
+    }
 
-            APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, currentLength);
-        } else {
+    /**
+     * Evaluate the APDU access of a command header against the rule of an aid & hash. Command data is a
+     * REF-DO followed by the 4 bytes command header (CLA INS P1 P2), the response is DF34 01 followed by
+     * 01 when access is allowed or 00 when it is denied or when no rule is stored.
+     */
+    private void processGetAccess() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        APDU apdu = APDU.getCurrentAPDU();
+
+        short lc = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+        if (apdu.setIncomingAndReceive() != lc)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short ofs = ISO7816.OFFSET_CDATA;
+
+        short ofsHeader = checkTLV(buf, ofs, (byte) 0xE1, (short) (4 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH));
+        if ((short) (ofsHeader + 4) != (short) (ofs + lc))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short ofsAidRefDo = (short) (ofs + 2);
+        short ofsHashRefDo = checkTLV(buf, ofsAidRefDo, (byte) 0x4F, (AccessRuleMaster.SIZE_AID));
+        checkTLV(buf, ofsHashRefDo, (byte) 0xC1, (AccessRuleMaster.SIZE_HASH));
+
+        boolean allowed = lookup.isAllowed(buf,
+                (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)], ofsHeader);
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x34;
+        buf[2] = (byte) 1;
+        buf[3] = allowed ? (byte) 1 : (byte) 0;
+        apdu.setOutgoingAndSend((short) 0, (short) 4);
+    }
+
+    /**
+     * process GET DATA usage report (proprietary).
+     * <p>
+     * Response is DF31 10 followed by 2 bytes values : active rules, recycled entries, recycled aid groups
+     * & slots, GET ALL response length, available persistent memory, available transient memory (reset &
+     * deselect) and largest AR-DO that can be stored. The Command-Store-AR-DO length is coded on one byte, so the
+     * largest AR-DO is MAX_STORE_AR_DO when a new rule can be stored and 0 otherwise.
+     */
+    private void processGetUsage() {
+
+        short getAllLength = getAllLength();
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x31;
+        buf[2] = (byte) 16;
+
+        short ofs = Util.setShort(buf, (short) 3, RuleEntry.getCount());
+        ofs = Util.setShort(buf, ofs, RuleEntry.getRecycledCount());
+        ofs = Util.setShort(buf, ofs, (short) (AidGroup.getRecycledCount() + HashSlot.getRecycledCount() + RuleSlot.getRecycledCount()));
+        ofs = Util.setShort(buf, ofs, getAllLength);
+        ofs = Util.setShort(buf, ofs, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+        ofs = Util.setShort(buf, ofs, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET));
+        ofs = Util.setShort(buf, ofs, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT));
+        ofs = Util.setShort(buf, ofs, canStore(getStoreCommit(SIZE_AID)) ? MAX_STORE_AR_DO : 0);
+        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, ofs);
+    }
+
+    /**
+     * Get the length of the GET ALL response, header included.
+     *
+     * @return GET ALL response length
+     */
+    private short getAllLength() {
+        short length = getStreamLength(STREAM_ALL);
+        return (short) (length + getStreamHeaderLength(length));
+    }
+
+    /**
+     * process GET DATA summary (proprietary).
+     * <p>
+     * Response is DF35 0E followed by the number of rules (2 bytes), the GET ALL response length (2 bytes),
+     * the refresh tag (8 bytes) and the store version (2 bytes). The store version changes with every store,
+     * delete &amp; reorder command, it is incremented before the rules are updated so that an interrupted
+     * update never leaves the rules changed under the previous version.
+     */
+    private void processGetSummary() {
+
+        short getAllLength = getAllLength();
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x35;
+        buf[2] = (byte) 14;
+
+        short ofs = Util.setShort(buf, (short) 3, RuleEntry.getCount());
+        ofs = Util.setShort(buf, ofs, getAllLength);
+        ofs = Util.arrayCopyNonAtomic(refreshTag, (short) 0, buf, ofs, (short) 8);
+        ofs = Util.setShort(buf, ofs, storeVersion);
+        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, ofs);
+    }
+
+    /**
+     * Read the optional one byte chunk index of a chunk command.
+     *
+     * @return chunk index (0 if no command data)
+     */
+    private short getChunkIndex() {
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        short lc = APDU.getCurrentAPDU().setIncomingAndReceive();
+        if (lc == 0)
+            return 0;
+        if (lc != (short) 1)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        return (short) (buf[ISO7816.OFFSET_CDATA] & 0xFF);
+    }
+
+    /**
+     * process GET DATA chunk digests (proprietary).
+     * <p>
+     * The GET ALL response is split in APDU_CHUNK slices, the i-th slice being the i-th GET ALL/GET NEXT
+     * response. Command data is the optional index of the first slice, response is DF36 followed by the
+     * number of slices (2 bytes) and the 4 bytes digest of up to CHUNK_DIGESTS slices from this index, 6A88
+     * is returned when there is no slice at this index. The digest of a slice is its ISO 3309 CRC32 as
+     * computed by the card checksum (implementations differ on bit order &amp; initial value), clients only
+     * compare it with the digests read before. Digests are kept in RAM until the next change of the store
+     * version or deselect, so reading them writes nothing to persistent memory and the rules are only encoded
+     * again after a store, delete or reorder.
+     */
+    private void processGetChunkDigests() {
+
+        short first = getChunkIndex();
+
+        updateChunkDigests(first);
+
+        short chunks = digestState[DIGEST_CHUNKS];
+        short last = (short) (first + CHUNK_DIGESTS);
+        if (last > chunks) {
+            last = chunks;
+        }
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        short length = (short) (4 * (last - first));
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x36;
+        buf[2] = (byte) (2 + length);
+        Util.setShort(buf, (short) 3, chunks);
+        Util.arrayCopyNonAtomic(chunkDigests, (short) 0, buf, (short) 5, length);
+        APDU.getCurrentAPDU().setOutgoingAndSend((short) 0, (short) (5 + length));
+    }
+
+    /**
+     * Compute the digests of the GET ALL chunks from a chunk index, unless they were computed from the same
+     * index for the current store version. The chunks are built in the apdu buffer.
+     *
+     * @param first index of the first chunk
+     */
+    private void updateChunkDigests(short first) {
+        if (digestState[DIGEST_VALID] != 0 && digestState[DIGEST_VERSION] == storeVersion &&
+                digestState[DIGEST_FIRST] == first)
+            return;
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+
+        short length = getStreamLength(STREAM_ALL);
+        short total = (short) (length + getStreamHeaderLength(length));
+        short chunks = (short) (total / APDU_CHUNK);
+        if ((short) (total % APDU_CHUNK) != 0) {
+            chunks++;
+        }
+        if (first >= chunks)
+            ISOException.throwIt((short) 0x6A88);
+
+        digestState[DIGEST_VALID] = 0;
+        short last = (short) (first + CHUNK_DIGESTS);
+        if (last > chunks) {
+            last = chunks;
+        }
+        for (short i = first; i < last; i++) {
+            short len = buildStreamChunk(buf, STREAM_ALL, (short) 0xFF40, length, i);
+            chunkChecksum.doFinal(buf, (short) 0, len, chunkDigests, (short) (4 * (short) (i - first)));
+        }
+        digestState[DIGEST_VERSION] = storeVersion;
+        digestState[DIGEST_CHUNKS] = chunks;
+        digestState[DIGEST_FIRST] = first;
+        digestState[DIGEST_VALID] = 1;
+    }
+
+    /**
+     * process GET DATA chunk by index (proprietary).
+     * <p>
+     * Command data is the index of a GET ALL slice (see GET DATA DF36), response is this slice, the same
+     * bytes as the GET ALL or GET NEXT response of this index. GET NEXT continues with the next slice.
+     */
+    private void processGetChunk() {
+        short index = getChunkIndex();
+        cursor[CURSOR_TAG] = (short) 0xFF40;
+        cursor[CURSOR_MODE] = STREAM_ALL;
+        short length = getStreamLength(STREAM_ALL);
+        cursor[CURSOR_LENGTH] = length;
+        if (index > (short) ((short) (getStreamHeaderLength(length) + length - 1) / APDU_CHUNK))
+            ISOException.throwIt((short) 0x6A88);
+        cursor[CURSOR_NEXT] = index;
+        sendStreamChunk();
+    }
+
+    /**
+     * process GET DATA operation counters (proprietary).
+     * <p>
+     * Response is DF32 10 followed by 2 bytes counters : GET ALL, GET NEXT, GET SPECIFIC hits, GET SPECIFIC
+     * misses, stores, deletes, committed transactions and bytes streamed. Counters are reset after being
+     * read when command data is 01. The RAM counters are added to the persistent totals before being read,
+     * counts made since the last read or deselect are lost on card reset.
+     */
+    private void processGetCounters() {
+
+        byte[] buf = APDU.getCurrentAPDUBuffer();
+        APDU apdu = APDU.getCurrentAPDU();
+
+        boolean reset = false;
+        short lc = apdu.setIncomingAndReceive();
+        if (lc != 0) {
+            if (lc != (short) 1)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            if (buf[ISO7816.OFFSET_CDATA] != (byte) 0x01)
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            reset = true;
+        }
+
+        Telemetry.flush();
+
+        buf[0] = (byte) 0xDF;
+        buf[1] = (byte) 0x32;
+        buf[2] = (byte) (Telemetry.COUNTERS * 2);
+
+        short ofs = 3;
+        for (byte i = 0; i < Telemetry.COUNTERS; i++) {
+            ofs = Util.setShort(buf, ofs, Telemetry.get(i));
+        }
+        if (reset) {
+            Telemetry.reset();
+        }
+        apdu.setOutgoingAndSend((short) 0, ofs);
+    }
+
+    /**
+     * process GET DATA NEXT (p23 Secure Element Access Control Version 1.0).
+     */
+    private void processGetNext() {
+        Telemetry.count(Telemetry.GET_NEXT);
+        if (cursor[CURSOR_NEXT] == 0) {
             ISOException.throwIt((short) 0x6A88);
         }
+        sendStreamChunk();
     }
 
     /**
@@ -282,13 +1043,23 @@ public class AccessRuleMaster extends Applet implements Application {
 
             if (buf[ofs] == (byte) 0xF0) {
                 //Command-Store-AR-DO
+                Telemetry.count(Telemetry.STORE);
                 storeArDo(buf);
             } else if (buf[ofs] == (byte) 0xF1) {
                 //Command-Delete-AR-DO
+                Telemetry.count(Telemetry.DELETE);
                 deleteArDo(buf);
             } else if (buf[ofs] == (byte) 0xF2) {
                 //Command-UpdateRefreshTag-DO
                 updateRefreshTag();
+            } else if (buf[ofs] == (byte) 0xF8) {
+                //compact rule store (proprietary)
+                compactStore(buf);
+            } else if (buf[ofs] == (byte) 0xF9) {
+                //reorder rules by heat (proprietary)
+                checkTLV(buf, ofs, (byte) 0xF9, (short) 0);
+                storeVersion++;
+                RuleEntry.sortByHeat();
             } else {
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
@@ -310,14 +1081,135 @@ public class AccessRuleMaster extends Applet implements Application {
         short ofsAidRefDo = (short) (ofs + 6);
         short ofsHashRefDo = checkTLV(buf, (short) (ofs + 6), (byte) 0x4F, (AccessRuleMaster.SIZE_AID));
         short ofsArDo = checkTLV(buf, ofsHashRefDo, (byte) 0xC1, (AccessRuleMaster.SIZE_HASH));
-        checkTLV(buf, ofsArDo, (byte) 0xE3, (AccessRuleMaster.SIZE_RULE));
+        checkTLV(buf, ofsArDo, (byte) 0xE3, MAX_AR_DO);
+        byte ruleLength = AramUtils.canonicalizeArDo(buf, (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]);
+
+        RuleEntry re = RuleEntry.resolveAidHash(buf,
+                (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
+        if (re != null) {
+            //merge into the existing rule for this REF-DO
+            RuleSlot slot = re.getRuleSlot();
+            short len = AramUtils.mergeArDo(slot.getRule(), (short) 0, (short) (slot.getRuleLength() & 0xFF),
+                    buf, (short) (ofsArDo + 2), ruleLength, ruleBuffer, false);
+            //no new rule, only the rule count limit does not apply
+            if (len > MAX_AR_DO || !canWrite((short) (MERGE_WRITES * COMMIT_PER_WRITE), MERGE_MEMORY)) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            JCSystem.beginTransaction();
+            re.setRule(ruleBuffer, (short) 0, (byte) len);
+            storeVersion++;
+            JCSystem.commitTransaction();
+            Telemetry.count(Telemetry.TRANSACTION);
+            return;
+        }
+
+        checkStoreCapacity(buf, (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)]);
 
         JCSystem.beginTransaction();
         RuleEntry pe = RuleEntry.getInstance();
         pe.setAid(buf, (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)]);
         pe.setHash(buf, (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
-        pe.setRule(buf, (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]);
+        pe.setRule(buf, (short) (ofsArDo + 2), ruleLength);
+        storeVersion++;
         JCSystem.commitTransaction();
+        Telemetry.count(Telemetry.TRANSACTION);
+    }
+
+    /**
+     * Check that one more rule can be stored before starting the transaction.
+     *
+     * @param buf    apdu buffer
+     * @param aidOfs offset for the aid of the new rule
+     * @param aidLen length of the aid of the new rule
+     */
+    private void checkStoreCapacity(byte[] buf, short aidOfs, byte aidLen) {
+        if (!canStore(getStoreCommit(AidTrie.getMissingNodes(buf, aidOfs, aidLen)))) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+    }
+
+    /**
+     * Get the commit buffer needed by the transaction of a rule store.
+     *
+     * @param trieNodes number of aid trie nodes allocated by the store
+     * @return commit buffer size
+     */
+    private static short getStoreCommit(short trieNodes) {
+        return (short) ((short) (STORE_WRITES + (short) (trieNodes * TRIE_NODE_WRITES)) * COMMIT_PER_WRITE);
+    }
+
+    /**
+     * Check rule count, commit capacity & persistent memory for one more rule.
+     *
+     * @param commit commit buffer needed by the store
+     * @return true if a rule can be stored
+     */
+    private boolean canStore(short commit) {
+        return RuleEntry.getCount() < MAX_RULES && canWrite(commit, STORE_MEMORY);
+    }
+
+    /**
+     * Check commit capacity & persistent memory for a rule update.
+     *
+     * @param commit commit buffer needed by the update
+     * @param memory persistent memory needed by the update
+     * @return true if the update can be done
+     */
+    private static boolean canWrite(short commit, short memory) {
+        return JCSystem.getUnusedCommitCapacity() >= commit &&
+                JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT) >= memory;
+    }
+
+    /**
+     * Send the remaining capacity after a rule store : number of rules that can still be stored
+     * followed by the available persistent memory (saturated to 0x7FFF).
+     */
+    private void sendStoreCapacity(APDU apdu) {
+        byte[] buf = apdu.getBuffer();
+        Util.setShort(buf, (short) 0, (short) (MAX_RULES - RuleEntry.getCount()));
+        Util.setShort(buf, (short) 2, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+        apdu.setOutgoingAndSend((short) 0, (short) 4);
+    }
+
+    /**
+     * Remove the APDU filters & sub data objects of an AR-DO from the rule of a REF-DO, the rule is
+     * deleted when nothing is left.
+     *
+     * @param buf          apdu buffer
+     * @param ofsAidRefDo  offset for the AID-REF-DO
+     * @param ofsHashRefDo offset for the HASH-REF-DO
+     * @param ofsArDo      offset for the AR-DO
+     */
+    private void deleteSubRules(byte[] buf, short ofsAidRefDo, short ofsHashRefDo, short ofsArDo) {
+        byte ruleLength = AramUtils.canonicalizeArDo(buf, (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]);
+
+        RuleEntry re = RuleEntry.searchAidHash(buf,
+                (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
+        if (re == null)
+            ISOException.throwIt((short) 0x6A88);
+
+        RuleSlot slot = re.getRuleSlot();
+        short current = (short) (slot.getRuleLength() & 0xFF);
+        short len = AramUtils.mergeArDo(slot.getRule(), (short) 0, current,
+                buf, (short) (ofsArDo + 2), ruleLength, ruleBuffer, true);
+
+        if (len == current && Util.arrayCompare(slot.getRule(), (short) 0, ruleBuffer, (short) 0, len) == 0)
+            ISOException.throwIt((short) 0x6A88);
+
+        if (len == 0) {
+            storeVersion++;
+            RuleEntry.deleteAidHash(buf,
+                    (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                    (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
+        } else {
+            JCSystem.beginTransaction();
+            re.setRule(ruleBuffer, (short) 0, (byte) len);
+            storeVersion++;
+            JCSystem.commitTransaction();
+            Telemetry.count(Telemetry.TRANSACTION);
+        }
     }
 
     /**
@@ -330,6 +1222,7 @@ public class AccessRuleMaster extends Applet implements Application {
         checkTLV(buf, ofs, (byte) 0xF1, (short) (6 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH + AccessRuleMaster.SIZE_RULE));
         if (buf[(short) (ofs + 1)] == 0) {
             //delete all rules if length == 0
+            storeVersion++;
             RuleEntry.deleteAll();
         } else if (buf[(short) (ofs + 2)] == (byte) 0x4F) {
             //delete AID-REF-DO
@@ -340,6 +1233,7 @@ public class AccessRuleMaster extends Applet implements Application {
             if (re == null)
                 ISOException.throwIt((short) 0x6A88);
 
+            storeVersion++;
             RuleEntry.deleteAid(buf, (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)]);
         } else if (buf[(short) (ofs + 2)] == (byte) 0xE1) {
             checkTLV(buf, (short) (ofs + 2), (byte) 0xE1, (short) (4 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH));
@@ -355,6 +1249,7 @@ public class AccessRuleMaster extends Applet implements Application {
             if (re == null)
                 ISOException.throwIt((short) 0x6A88);
 
+            storeVersion++;
             RuleEntry.deleteAidHash(buf,
                     (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
                     (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
@@ -365,22 +1260,21 @@ public class AccessRuleMaster extends Applet implements Application {
             short ofsAidRefDo = (short) (ofs + 6);
             short ofsHashRefDo = checkTLV(buf, (short) (ofs + 6), (byte) 0x4F, (AccessRuleMaster.SIZE_AID));
             short ofsArDo = checkTLV(buf, ofsHashRefDo, (byte) 0xC1, (AccessRuleMaster.SIZE_HASH));
-            checkTLV(buf, ofsArDo, (byte) 0xE3, (AccessRuleMaster.SIZE_RULE));
-
-            if (buf[(short) (ofsArDo + 1)] > 2) {
-                RuleEntry re = RuleEntry.searchAidHashRule(buf,
-                        (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
-                        (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)],
-                        (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]);
-
-                if (re == null)
-                    ISOException.throwIt((short) 0x6A88);
+            checkTLV(buf, ofsArDo, (byte) 0xE3, MAX_AR_DO);
 
+            if (RuleEntry.searchAidHashRule(buf,
+                    (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
+                    (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)],
+                    (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]) != null) {
+                //the AR-DO is the stored rule
+                storeVersion++;
                 RuleEntry.deleteAidHashRule(buf,
                         (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
                         (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)],
                         (short) (ofsArDo + 2), buf[(short) (ofsArDo + 1)]);
-
+            } else if (buf[(short) (ofsArDo + 1)] > 2) {
+                //delete the sub-rules of the AR-DO
+                deleteSubRules(buf, ofsAidRefDo, ofsHashRefDo, ofsArDo);
             } else {
                 RuleEntry re = RuleEntry.searchAidHash(buf,
                         (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
@@ -389,6 +1283,7 @@ public class AccessRuleMaster extends Applet implements Application {
                 if (re == null)
                     ISOException.throwIt((short) 0x6A88);
 
+                storeVersion++;
                 RuleEntry.deleteAidHash(buf,
                         (short) (ofsAidRefDo + 2), buf[(short) (ofsAidRefDo + 1)],
                         (short) (ofsHashRefDo + 2), buf[(short) (ofsHashRefDo + 1)]);
@@ -396,6 +1291,16 @@ public class AccessRuleMaster extends Applet implements Application {
         }
     }
 
+    /**
+     * Compact the rule store (proprietary) : unlink the deleted entries, which rebuilds the REF-DO filter,
+     * and drop all the recycled objects.
+     */
+    private void compactStore(byte[] buf) {
+        checkTLV(buf, ISO7816.OFFSET_CDATA, (byte) 0xF8, (short) 0);
+        RuleEntry.purge();
+        RuleEntry.compact((short) 0x7FFF);
+    }
+
     /**
      * Command-UpdateRefreshTag-DO (p36 & p39 Secure Element Access Control Version 1.0).
      */
@@ -405,7 +1310,8 @@ public class AccessRuleMaster extends Applet implements Application {
     }
 
     /**
-     * Check tag & length for tag length value.
+     * Check tag & length for tag length value, lengths are coded on one byte (long forms are rejected with
+     * 6A80).
      *
      * @param buffer apdu buffer
      * @param ofs    buffer offset
@@ -417,6 +1323,8 @@ public class AccessRuleMaster extends Applet implements Application {
         if (buffer[ofs++] != tag)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         short len = buffer[ofs++];
+        if (len < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         if (len > maxLen)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         return (short) (ofs + len);
@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.Util;
+
+/**
+ * Group of rule entries sharing the same AID.
+ * <p>
+ * The AID is stored once per group and each group owns the list of its hash/rule entries, so
+ * operations keyed on an AID only visit the entries of that group. Groups are indexed by AID in
+ * {@link AidTrie}.
+ *
+ * @author Bertrand Martel
+ */
+public class AidGroup extends PoolItem {
+
+    private static AidGroup first;
+    private static AidGroup deleted;
+
+    private byte[] aid;
+    private byte aidLength;
+
+    /**
+     * first rule entry of this group.
+     */
+    private RuleEntry entries;
+
+    /**
+     * index of the node of this group in the aid trie.
+     */
+    private short trieNode;
+
+    /**
+     * init properties.
+     */
+    private AidGroup() {
+        aid = new byte[AccessRuleMaster.SIZE_AID];
+    }
+
+    /**
+     * Search a group by aid.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the aid
+     * @param len length of the aid
+     * @return aid group or null if no rule is stored for this aid
+     */
+    static AidGroup search(byte[] buf, short ofs, byte len) {
+        AidGroup indexed = AidTrie.search(buf, ofs, len);
+        if (indexed != null || AidTrie.isComplete())
+            return indexed;
+        for (AidGroup group = first; group != null; group = (AidGroup) group.next) {
+            if (group.aidLength != len) continue;
+            if (Util.arrayCompare(group.aid, (short) 0, buf, ofs, len) == 0)
+                return group;
+        }
+        return null;
+    }
+
+    /**
+     * Get the group for this aid, allocating a new group if needed.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the aid
+     * @param len length of the aid
+     * @return aid group
+     */
+    static AidGroup acquire(byte[] buf, short ofs, byte len) {
+        AidGroup group = search(buf, ofs, len);
+        if (group == null) {
+            if (deleted == null) {
+                group = new AidGroup();
+            } else {
+                group = deleted;
+                deleted = (AidGroup) group.next;
+            }
+            AramUtils.updateArray(buf, ofs, group.aid, (short) 0, len);
+            if (group.aidLength != len) {
+                group.aidLength = len;
+            }
+            group.link();
+            AidTrie.insert(group, buf, ofs, len);
+        }
+        return group;
+    }
+
+    /**
+     * recycle this group once its last entry has left.
+     */
+    void release() {
+        if (entries == null) {
+            AidTrie.remove(this);
+            remove();
+            next = deleted;
+            deleted = this;
+        }
+    }
+
+    /**
+     * Get the number of recycled groups.
+     *
+     * @return length of the free list
+     */
+    static short getRecycledCount() {
+        return count(deleted);
+    }
+
+    /**
+     * Drop up to budget recycled groups so that they can be reclaimed by object deletion.
+     *
+     * @param budget maximum number of groups to drop
+     * @return number of groups dropped
+     */
+    static short trim(short budget) {
+        short count = count(deleted);
+        if (count > budget) {
+            count = budget;
+        }
+        deleted = (AidGroup) drop(deleted, count);
+        return count;
+    }
+
+    /**
+     * Check if the aid of this group starts with a prefix.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the prefix
+     * @param len length of the prefix
+     * @return true if the aid matches the prefix
+     */
+    boolean startsWith(byte[] buf, short ofs, byte len) {
+        return aidLength >= len && Util.arrayCompare(aid, (short) 0, buf, ofs, len) == 0;
+    }
+
+    /**
+     * insert this group at the head of the active list.
+     */
+    private void link() {
+        first = (AidGroup) linkTo(first);
+    }
+
+    /**
+     * remove this group from the active list.
+     */
+    private void remove() {
+        first = (AidGroup) unlinkFrom(first);
+    }
+
+    /**
+     * get the first group.
+     *
+     * @return first aid group
+     */
+    static AidGroup getFirst() {
+        return first;
+    }
+
+    AidGroup getNext() {
+        return (AidGroup) next;
+    }
+
+    RuleEntry getEntries() {
+        return entries;
+    }
+
+    void setEntries(RuleEntry entries) {
+        this.entries = entries;
+    }
+
+    short getTrieNode() {
+        return trieNode;
+    }
+
+    void setTrieNode(short trieNode) {
+        this.trieNode = trieNode;
+    }
+
+    byte[] getAid() {
+        return aid;
+    }
+
+    public byte getAidLength() {
+        return aidLength;
+    }
+}
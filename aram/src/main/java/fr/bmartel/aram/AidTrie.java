@@ -0,0 +1,343 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+/**
+ * Prefix tree indexing the aid groups by AID value.
+ * <p>
+ * Nodes are stored in persistent arrays (first child / next sibling), one node per AID byte, with
+ * siblings sorted by byte value. Exact AID lookup costs one node per AID byte and all the groups
+ * under an AID prefix (for instance a RID) are reached by walking the sub-tree of the prefix node.
+ * <p>
+ * When the node table is full, new groups are not indexed and lookups fall back to a scan of the
+ * aid groups until these groups are released.
+ *
+ * @author Bertrand Martel
+ */
+public class AidTrie {
+
+    /**
+     * no node index.
+     */
+    final static short NONE = -1;
+
+    /**
+     * root node index (empty AID).
+     */
+    final static short ROOT = 0;
+
+    /**
+     * maximum number of nodes in the tree.
+     */
+    final static short MAX_NODES = 256;
+
+    private static byte[] label;
+    private static short[] child;
+    private static short[] sibling;
+    private static short[] parent;
+    private static AidGroup[] groups;
+
+    /**
+     * first free node (free nodes are chained with sibling index).
+     */
+    private static short free;
+
+    /**
+     * number of aid groups that could not be indexed.
+     */
+    private static short unindexed;
+
+    /**
+     * allocate the node table on first use.
+     */
+    private static void init() {
+        if (label != null)
+            return;
+        label = new byte[MAX_NODES];
+        child = new short[MAX_NODES];
+        sibling = new short[MAX_NODES];
+        parent = new short[MAX_NODES];
+        groups = new AidGroup[MAX_NODES];
+        child[ROOT] = NONE;
+        sibling[ROOT] = NONE;
+        parent[ROOT] = NONE;
+        for (short i = 1; i < MAX_NODES; i++) {
+            sibling[i] = (short) (i + 1);
+        }
+        sibling[(short) (MAX_NODES - 1)] = NONE;
+        free = 1;
+        unindexed = 0;
+    }
+
+    /**
+     * Check if all the aid groups are indexed in the tree.
+     *
+     * @return true if a lookup miss in the tree means that the aid is not stored
+     */
+    static boolean isComplete() {
+        return unindexed == 0;
+    }
+
+    /**
+     * Find the child of a node matching an AID byte.
+     *
+     * @param node parent node
+     * @param b    AID byte
+     * @return child node index or NONE
+     */
+    private static short findChild(short node, byte b) {
+        for (short c = child[node]; c != NONE; c = sibling[c]) {
+            if (label[c] == b)
+                return c;
+            if ((short) (label[c] & 0xFF) > (short) (b & 0xFF))
+                break;
+        }
+        return NONE;
+    }
+
+    /**
+     * Get the number of nodes that inserting an AID would allocate.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the aid
+     * @param len length of the aid
+     * @return number of aid bytes not indexed yet
+     */
+    static short getMissingNodes(byte[] buf, short ofs, byte len) {
+        init();
+        short node = ROOT;
+        short i = 0;
+        while (i < len) {
+            node = findChild(node, buf[(short) (ofs + i)]);
+            if (node == NONE)
+                break;
+            i++;
+        }
+        return (short) (len - i);
+    }
+
+    /**
+     * Find the node matching an AID or AID prefix.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the aid
+     * @param len length of the aid
+     * @return node index or NONE if no stored AID starts with this value
+     */
+    static short find(byte[] buf, short ofs, byte len) {
+        init();
+        short node = ROOT;
+        for (short i = 0; i < len && node != NONE; i++) {
+            node = findChild(node, buf[(short) (ofs + i)]);
+        }
+        return node;
+    }
+
+    /**
+     * Search an aid group by exact AID.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the aid
+     * @param len length of the aid
+     * @return aid group or null if not indexed
+     */
+    static AidGroup search(byte[] buf, short ofs, byte len) {
+        short node = find(buf, ofs, len);
+        if (node == NONE)
+            return null;
+        return groups[node];
+    }
+
+    /**
+     * Index an aid group.
+     *
+     * @param group aid group to index
+     * @param buf   buffer holding the aid
+     * @param ofs   offset for the aid
+     * @param len   length of the aid
+     */
+    static void insert(AidGroup group, byte[] buf, short ofs, byte len) {
+        init();
+        short node = ROOT;
+        for (short i = 0; i < len; i++) {
+            byte b = buf[(short) (ofs + i)];
+            short c = findChild(node, b);
+            if (c == NONE) {
+                c = allocNode(node, b);
+                if (c == NONE) {
+                    prune(node);
+                    group.setTrieNode(NONE);
+                    unindexed++;
+                    return;
+                }
+            }
+            node = c;
+        }
+        groups[node] = group;
+        group.setTrieNode(node);
+    }
+
+    /**
+     * Remove an aid group from the index.
+     *
+     * @param group aid group to remove
+     */
+    static void remove(AidGroup group) {
+        init();
+        short node = group.getTrieNode();
+        if (node == NONE) {
+            if (unindexed > 0) {
+                unindexed--;
+            }
+            return;
+        }
+        groups[node] = null;
+        group.setTrieNode(NONE);
+        prune(node);
+    }
+
+    /**
+     * Allocate a child node, keeping siblings sorted by byte value.
+     *
+     * @param node parent node
+     * @param b    AID byte
+     * @return new node index or NONE if the table is full
+     */
+    private static short allocNode(short node, byte b) {
+        if (free == NONE)
+            return NONE;
+        short n = free;
+        free = sibling[n];
+        label[n] = b;
+        child[n] = NONE;
+        parent[n] = node;
+        groups[n] = null;
+
+        short previous = NONE;
+        short c = child[node];
+        while (c != NONE && (short) (label[c] & 0xFF) < (short) (b & 0xFF)) {
+            previous = c;
+            c = sibling[c];
+        }
+        sibling[n] = c;
+        if (previous == NONE) {
+            child[node] = n;
+        } else {
+            sibling[previous] = n;
+        }
+        return n;
+    }
+
+    /**
+     * Free a node and its ancestors while they have no child and no group.
+     *
+     * @param node first node to check
+     */
+    private static void prune(short node) {
+        while (node != ROOT && child[node] == NONE && groups[node] == null) {
+            short p = parent[node];
+            if (child[p] == node) {
+                child[p] = sibling[node];
+            } else {
+                short c = child[p];
+                while (sibling[c] != node) {
+                    c = sibling[c];
+                }
+                sibling[c] = sibling[node];
+            }
+            sibling[node] = free;
+            free = node;
+            node = p;
+        }
+    }
+
+    /**
+     * Get the next node in pre-order, without leaving the sub-tree of a node.
+     *
+     * @param node current node
+     * @param root root of the sub-tree
+     * @return next node index or NONE at the end of the sub-tree
+     */
+    private static short nextNode(short node, short root) {
+        if (child[node] != NONE)
+            return child[node];
+        while (node != root) {
+            if (sibling[node] != NONE)
+                return sibling[node];
+            node = parent[node];
+        }
+        return NONE;
+    }
+
+    /**
+     * Get the first aid group whose AID starts with a prefix.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the prefix
+     * @param len length of the prefix
+     * @return aid group or null if none
+     */
+    static AidGroup firstGroup(byte[] buf, short ofs, byte len) {
+        if (!isComplete()) {
+            return scanGroups(AidGroup.getFirst(), buf, ofs, len);
+        }
+        short root = find(buf, ofs, len);
+        return walkGroups(root, root);
+    }
+
+    /**
+     * Get the next aid group whose AID starts with a prefix.
+     *
+     * @param group current aid group
+     * @param buf   apdu buffer
+     * @param ofs   offset for the prefix
+     * @param len   length of the prefix
+     * @return aid group or null if none
+     */
+    static AidGroup nextGroup(AidGroup group, byte[] buf, short ofs, byte len) {
+        if (!isComplete()) {
+            return scanGroups(group.getNext(), buf, ofs, len);
+        }
+        short root = find(buf, ofs, len);
+        if (root == NONE)
+            return null;
+        return walkGroups(nextNode(group.getTrieNode(), root), root);
+    }
+
+    private static AidGroup walkGroups(short node, short root) {
+        for (; node != NONE; node = nextNode(node, root)) {
+            if (groups[node] != null)
+                return groups[node];
+        }
+        return null;
+    }
+
+    private static AidGroup scanGroups(AidGroup group, byte[] buf, short ofs, byte len) {
+        for (; group != null; group = group.getNext()) {
+            if (group.startsWith(buf, ofs, len))
+                return group;
+        }
+        return null;
+    }
+}
@@ -23,6 +23,11 @@
  */
 package fr.bmartel.aram;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
 /**
  * Functions used to generate ARAM data object data from a Rule Entry object, from Global Platform spec : Secure Element Access Control Version 1.0.
  * <p>
@@ -30,6 +35,55 @@ package fr.bmartel.aram;
  */
 public class AramUtils {
 
+    /**
+     * number of value bytes written by {@link #updateArray}, kept in RAM (a persistent counter would add a write per copy).
+     */
+    private static short[] writeCount;
+
+    /**
+     * Get the number of value bytes written into rule pool arrays since the last reset.
+     * <p>
+     * Only the copies made by {@link #updateArray} are counted, length, digest & link fields are not.
+     *
+     * @return number of bytes written
+     */
+    static short getWriteCount() {
+        return writeCount == null ? 0 : writeCount[0];
+    }
+
+    /**
+     * Reset the value write counter.
+     */
+    static void resetWriteCount() {
+        if (writeCount != null) {
+            writeCount[0] = 0;
+        }
+    }
+
+    /**
+     * Copy a value into a persistent array, writing only if the content differs.
+     * <p>
+     * The copy is not atomic : it must target an object that is not reachable yet (a new or recycled
+     * slot), the link committed afterwards making the value visible.
+     *
+     * @param src     source buffer
+     * @param srcOfs  source offset
+     * @param dest    persistent destination array
+     * @param destOfs destination offset
+     * @param len     length to copy
+     * @return true if the destination was written
+     */
+    public static boolean updateArray(byte[] src, short srcOfs, byte[] dest, short destOfs, short len) {
+        if (Util.arrayCompare(src, srcOfs, dest, destOfs, len) == 0)
+            return false;
+        Util.arrayCopyNonAtomic(src, srcOfs, dest, destOfs, len);
+        if (writeCount == null) {
+            writeCount = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        }
+        writeCount[0] += len;
+        return true;
+    }
+
     /**
      * Convert a RuleEntry object to a REF-AR-DO data object.
      * <p>
@@ -40,19 +94,461 @@ public class AramUtils {
      * @param entry rule entry
      * @return length of REF-AR-DO payload
      */
-    public static byte buildRefArDo(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, RuleEntry entry) {
+    public static short buildRefArDo(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, RuleEntry entry) {
         if (ofs >= dataOffset && ofs < dataOffsetMax) {
             buf[(short) (ofs - dataOffset)] = (byte) 0xE2;
         }
         ofs++;
-        byte refDoLen = buildRefDo(dataOffset, dataOffsetMax, buf, (short) (ofs + 1), entry);
-        byte arDoLen = buildArDo(dataOffset, dataOffsetMax, buf, (short) (ofs + refDoLen + 1), entry);
+        short refDoLen = (short) (6 + entry.getAidLength() + entry.getHashLength());
+        ofs = buildLength(dataOffset, dataOffsetMax, buf, ofs, (short) (refDoLen + getArDoLength(entry)));
+        buildRefDo(dataOffset, dataOffsetMax, buf, ofs, entry);
+        buildArDo(dataOffset, dataOffsetMax, buf, (short) (ofs + refDoLen), entry);
+        return getRefArDoLength(entry);
+    }
+
+
+    /**
+     * Get the length of the REF-AR-DO data object built from a RuleEntry object.
+     *
+     * @param entry rule entry
+     * @return length of REF-AR-DO payload
+     */
+    public static short getRefArDoLength(RuleEntry entry) {
+        short len = (short) (6 + entry.getAidLength() + entry.getHashLength() + getArDoLength(entry));
+        return (short) (1 + getLengthSize(len) + len);
+    }
+
+    /**
+     * Get the length of the AR-DO data object built from a RuleEntry object.
+     *
+     * @param entry rule entry
+     * @return length of AR-DO payload
+     */
+    public static short getArDoLength(RuleEntry entry) {
+        short len = (short) (entry.getRuleLength() & 0xFF);
+        return (short) (1 + getLengthSize(len) + len);
+    }
+
+    /**
+     * Get the size of a BER length : short form up to 127, 81 form up to 255.
+     *
+     * @param len length to encode
+     * @return size of the encoded length
+     */
+    static short getLengthSize(short len) {
+        return len > 0x7F ? (short) 2 : (short) 1;
+    }
+
+    /**
+     * Write the part of a BER length (short form up to 127, 81 form up to 255) falling in the current chunk.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset
+     * @param len length to encode
+     * @return offset after the encoded length
+     */
+    private static short buildLength(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, short len) {
+        if (len > 0x7F) {
+            if (ofs >= dataOffset && ofs < dataOffsetMax) {
+                buf[(short) (ofs - dataOffset)] = (byte) 0x81;
+            }
+            ofs++;
+        }
         if (ofs >= dataOffset && ofs < dataOffsetMax) {
-            buf[(short) (ofs - dataOffset)] = (byte) (refDoLen + arDoLen);
+            buf[(short) (ofs - dataOffset)] = (byte) len;
+        }
+        return (short) (ofs + 1);
+    }
+
+    /**
+     * Validate an AR-DO value and rewrite it in canonical form : APDU-AR-DO first with its filters masked
+     * (header &amp; mask), sorted & deduplicated, then NFC-AR-DO, then the other sub data objects (such as
+     * PERM-AR-DO) kept verbatim in their original order. Lengths of APDU-AR-DO & NFC-AR-DO use the short form
+     * when possible. Only APDU-AR-DO & NFC-AR-DO values are checked, the other sub data objects must only be
+     * well formed. The canonical form is never longer than the input so it is rewritten in place.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the AR-DO value
+     * @param len length of the AR-DO value
+     * @return length of the canonical AR-DO value
+     */
+    public static byte canonicalizeArDo(byte[] buf, short ofs, short len) {
+        short end = (short) (ofs + len);
+        short apdu = -1;
+        short nfc = -1;
+        short i = ofs;
+        while (i < end) {
+            short tlv = i;
+            byte tag = buf[i++];
+            if (i >= end)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            short l = (short) (buf[i++] & 0xFF);
+            if (l == 0x81 && i < end) {
+                l = (short) (buf[i++] & 0xFF);
+            } else if (l > 0x7F) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            if ((short) (i + l) > end)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            if (tag == (byte) 0xD0) {
+                if (apdu >= 0)
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                if (l == 1) {
+                    if (buf[i] != 0 && buf[i] != 1)
+                        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                } else if (l == 0 || (l & 7) != 0) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+                apdu = tlv;
+            } else if (tag == (byte) 0xD1) {
+                if (nfc >= 0 || l != 1 || (buf[i] != 0 && buf[i] != 1))
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                nfc = tlv;
+            }
+            i += l;
+        }
+
+        short out = ofs;
+        if (apdu >= 0) {
+            out = moveSubDo(buf, out, apdu);
+            if (nfc >= 0 && nfc < apdu) {
+                nfc += (short) (out - ofs);
+            }
+        }
+        if (nfc >= 0) {
+            moveSubDo(buf, out, nfc);
+        }
+
+        //mask & sort the filters, shorten the lengths and pack the sub data objects
+        out = ofs;
+        i = ofs;
+        while (i < end) {
+            byte tag = buf[i];
+            short v = getValueOffset(buf, i);
+            short l = getValueLength(buf, i);
+            short next = (short) (v + l);
+            if (tag == (byte) 0xD0 || tag == (byte) 0xD1) {
+                if (tag == (byte) 0xD0 && l > 1) {
+                    l = sortFilters(buf, v, l);
+                }
+                buf[out++] = tag;
+                if (l > 0x7F) {
+                    buf[out++] = (byte) 0x81;
+                }
+                buf[out++] = (byte) l;
+                out = Util.arrayCopyNonAtomic(buf, v, buf, out, l);
+            } else {
+                out = Util.arrayCopyNonAtomic(buf, i, buf, out, (short) (next - i));
+            }
+            i = next;
         }
-        return (byte) (refDoLen + arDoLen + 2);
+        return (byte) (out - ofs);
     }
 
+    /**
+     * Move a sub data object to a lower offset, the bytes in between are shifted after it.
+     *
+     * @param buf buffer
+     * @param to  destination offset
+     * @param tlv offset of the sub data object tag
+     * @return offset following the moved sub data object
+     */
+    private static short moveSubDo(byte[] buf, short to, short tlv) {
+        short next = getNextSubDo(buf, tlv);
+        reverse(buf, to, tlv);
+        reverse(buf, tlv, next);
+        reverse(buf, to, next);
+        return (short) (to + next - tlv);
+    }
+
+    private static void reverse(byte[] buf, short from, short to) {
+        while (from < --to) {
+            byte tmp = buf[from];
+            buf[from++] = buf[to];
+            buf[to] = tmp;
+        }
+    }
+
+    /**
+     * Mask, sort & deduplicate APDU filters (4 bytes header followed by 4 bytes mask) in place.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the filters
+     * @param len length of the filters
+     * @return length of the filters without duplicates
+     */
+    private static short sortFilters(byte[] buf, short ofs, short len) {
+        short end = (short) (ofs + len);
+        short last = ofs;
+        for (short f = ofs; f < end; f += 8) {
+            for (short j = 0; j < 4; j++) {
+                buf[(short) (f + j)] &= buf[(short) (f + 4 + j)];
+            }
+            if (f != last) {
+                Util.arrayCopyNonAtomic(buf, f, buf, last, (short) 8);
+            }
+            short p = last;
+            byte cmp = 1;
+            while (p > ofs && (cmp = Util.arrayCompare(buf, (short) (p - 8), buf, p, (short) 8)) > 0) {
+                for (short j = 0; j < 8; j++) {
+                    byte tmp = buf[(short) (p - 8 + j)];
+                    buf[(short) (p - 8 + j)] = buf[(short) (p + j)];
+                    buf[(short) (p + j)] = tmp;
+                }
+                p -= 8;
+            }
+            if (p > ofs && cmp == 0) {
+                Util.arrayCopyNonAtomic(buf, (short) (p + 8), buf, p, (short) (last - p));
+            } else {
+                last += 8;
+            }
+        }
+        return (short) (last - ofs);
+    }
+
+    /**
+     * Find a sub data object in a canonical AR-DO value.
+     *
+     * @param buf AR-DO value
+     * @param ofs offset for the AR-DO value
+     * @param len length of the AR-DO value
+     * @param tag tag of the sub data object
+     * @return offset of the sub data object tag or -1 if not found
+     */
+    static short findSubDo(byte[] buf, short ofs, short len, byte tag) {
+        short end = (short) (ofs + len);
+        while (ofs < end) {
+            if (buf[ofs] == tag)
+                return ofs;
+            ofs = getNextSubDo(buf, ofs);
+        }
+        return -1;
+    }
+
+    /**
+     * Get the offset following a data object with a one byte tag.
+     *
+     * @param buf buffer
+     * @param tlv offset of the tag
+     * @return offset of the next data object
+     */
+    static short getNextSubDo(byte[] buf, short tlv) {
+        return (short) (getValueOffset(buf, tlv) + getValueLength(buf, tlv));
+    }
+
+    /**
+     * Get the value offset of a data object with a one byte tag.
+     *
+     * @param buf buffer
+     * @param tlv offset of the tag
+     * @return offset of the value
+     */
+    static short getValueOffset(byte[] buf, short tlv) {
+        return (short) (buf[(short) (tlv + 1)] == (byte) 0x81 ? tlv + 3 : tlv + 2);
+    }
+
+    /**
+     * Get the value length of a data object with a one byte tag.
+     *
+     * @param buf buffer
+     * @param tlv offset of the tag
+     * @return length of the value
+     */
+    static short getValueLength(byte[] buf, short tlv) {
+        if (buf[(short) (tlv + 1)] == (byte) 0x81)
+            return (short) (buf[(short) (tlv + 2)] & 0xFF);
+        return buf[(short) (tlv + 1)];
+    }
+
+    /**
+     * Merge two canonical AR-DO values or remove the sub-rules of the second from the first.
+     * <p>
+     * When merging, APDU filters are added to the existing filters and a generic APDU-AR-DO (never/always),
+     * a NFC-AR-DO or another sub data object replaces the existing one with the same tag. When removing,
+     * APDU filters & sub data objects equal to those of the second AR-DO are removed. The result is canonical.
+     *
+     * @param a      existing AR-DO value
+     * @param aOfs   offset for the existing AR-DO value
+     * @param aLen   length of the existing AR-DO value
+     * @param b      AR-DO value to merge or remove
+     * @param bOfs   offset for the AR-DO value to merge or remove
+     * @param bLen   length of the AR-DO value to merge or remove
+     * @param out    output buffer
+     * @param remove true to remove the sub-rules of b from a, false to merge them
+     * @return length of the resulting AR-DO value written at the beginning of out (0 if empty)
+     */
+    public static short mergeArDo(byte[] a, short aOfs, short aLen, byte[] b, short bOfs, short bLen,
+                                  byte[] out, boolean remove) {
+        short aApdu = findSubDo(a, aOfs, aLen, (byte) 0xD0);
+        short bApdu = findSubDo(b, bOfs, bLen, (byte) 0xD0);
+        short o = 0;
+
+        if (aApdu >= 0 && bApdu >= 0 && getValueLength(a, aApdu) > 1 && getValueLength(b, bApdu) > 1) {
+            o = mergeFilters(a, aApdu, b, bApdu, out, remove);
+        } else if (remove) {
+            if (aApdu >= 0 && (bApdu < 0 || !equalsSubDo(a, aApdu, b, bApdu))) {
+                o = copySubDo(a, aApdu, out, o);
+            }
+        } else if (bApdu >= 0) {
+            o = copySubDo(b, bApdu, out, o);
+        } else if (aApdu >= 0) {
+            o = copySubDo(a, aApdu, out, o);
+        }
+
+        short aNfc = findSubDo(a, aOfs, aLen, (byte) 0xD1);
+        short bNfc = findSubDo(b, bOfs, bLen, (byte) 0xD1);
+        if (remove) {
+            if (aNfc >= 0 && (bNfc < 0 || !equalsSubDo(a, aNfc, b, bNfc))) {
+                o = copySubDo(a, aNfc, out, o);
+            }
+        } else if (bNfc >= 0) {
+            o = copySubDo(b, bNfc, out, o);
+        } else if (aNfc >= 0) {
+            o = copySubDo(a, aNfc, out, o);
+        }
+
+        short aEnd = (short) (aOfs + aLen);
+        for (short t = aOfs; t < aEnd; t = getNextSubDo(a, t)) {
+            if (a[t] == (byte) 0xD0 || a[t] == (byte) 0xD1)
+                continue;
+            short bt = findSubDo(b, bOfs, bLen, a[t]);
+            if (remove) {
+                if (bt < 0 || !equalsSubDo(a, t, b, bt)) {
+                    o = copySubDo(a, t, out, o);
+                }
+            } else if (bt >= 0) {
+                o = copySubDo(b, bt, out, o);
+            } else {
+                o = copySubDo(a, t, out, o);
+            }
+        }
+        if (!remove) {
+            short bEnd = (short) (bOfs + bLen);
+            for (short t = bOfs; t < bEnd; t = getNextSubDo(b, t)) {
+                if (b[t] != (byte) 0xD0 && b[t] != (byte) 0xD1 && findSubDo(a, aOfs, aLen, b[t]) < 0) {
+                    o = copySubDo(b, t, out, o);
+                }
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Merge or subtract two sorted APDU filter lists into an APDU-AR-DO written at the beginning of out.
+     *
+     * @return length of the APDU-AR-DO, 0 if no filter is left
+     */
+    private static short mergeFilters(byte[] a, short aApdu, byte[] b, short bApdu, byte[] out, boolean remove) {
+        short i = getValueOffset(a, aApdu);
+        short iEnd = (short) (i + getValueLength(a, aApdu));
+        short j = getValueOffset(b, bApdu);
+        short jEnd = (short) (j + getValueLength(b, bApdu));
+        short w = 3;
+        while (i < iEnd || j < jEnd) {
+            byte cmp;
+            if (i >= iEnd) {
+                cmp = 1;
+            } else if (j >= jEnd) {
+                cmp = -1;
+            } else {
+                cmp = Util.arrayCompare(a, i, b, j, (short) 8);
+            }
+            if (cmp < 0) {
+                w = copyFilter(a, i, out, w);
+                i += 8;
+            } else {
+                if (!remove) {
+                    w = copyFilter(b, j, out, w);
+                }
+                if (cmp == 0) {
+                    i += 8;
+                }
+                j += 8;
+            }
+        }
+        short len = (short) (w - 3);
+        if (len == 0)
+            return 0;
+        out[0] = (byte) 0xD0;
+        if (len > 0x7F) {
+            out[1] = (byte) 0x81;
+            out[2] = (byte) len;
+            return w;
+        }
+        out[1] = (byte) len;
+        Util.arrayCopyNonAtomic(out, (short) 3, out, (short) 2, len);
+        return (short) (w - 1);
+    }
+
+    private static short copyFilter(byte[] src, short ofs, byte[] out, short w) {
+        if ((short) (w + 8) > (short) out.length)
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        return Util.arrayCopyNonAtomic(src, ofs, out, w, (short) 8);
+    }
+
+    private static short copySubDo(byte[] src, short tlv, byte[] out, short o) {
+        short len = (short) (getValueOffset(src, tlv) - tlv + getValueLength(src, tlv));
+        if ((short) (o + len) > (short) out.length)
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        return Util.arrayCopyNonAtomic(src, tlv, out, o, len);
+    }
+
+    private static boolean equalsSubDo(byte[] a, short aTlv, byte[] b, short bTlv) {
+        short len = (short) (getValueOffset(a, aTlv) - aTlv + getValueLength(a, aTlv));
+        return getValueLength(a, aTlv) == getValueLength(b, bTlv) && Util.arrayCompare(a, aTlv, b, bTlv, len) == 0;
+    }
+
+    /**
+     * Get the length of the heat listing item built from a RuleEntry object (REF-DO followed by hit count).
+     *
+     * @param entry rule entry
+     * @return length of the item
+     */
+    public static short getHeatItemLength(RuleEntry entry) {
+        return (short) (9 + entry.getAidLength() + entry.getHashLength());
+    }
+
+    /**
+     * Convert a RuleEntry object to a heat listing item : REF-DO followed by C2 01 hit count.
+     *
+     * @param buf   apdu buffer
+     * @param ofs   offset
+     * @param entry rule entry
+     * @return length of the item
+     */
+    public static short buildHeatItem(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, RuleEntry entry) {
+        ofs += buildRefDo(dataOffset, dataOffsetMax, buf, ofs, entry);
+        if (ofs >= dataOffset && ofs < dataOffsetMax) {
+            buf[(short) (ofs - dataOffset)] = (byte) 0xC2;
+        }
+        ofs++;
+        if (ofs >= dataOffset && ofs < dataOffsetMax) {
+            buf[(short) (ofs - dataOffset)] = (byte) 1;
+        }
+        ofs++;
+        if (ofs >= dataOffset && ofs < dataOffsetMax) {
+            buf[(short) (ofs - dataOffset)] = (byte) entry.getHeat();
+        }
+        return getHeatItemLength(entry);
+    }
+
+    /**
+     * Build an empty REF-AR-DO (E2 00), used in place of the REF-AR-DO of a REF-DO without rule.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset
+     * @return length of the empty REF-AR-DO
+     */
+    public static short buildEmptyRefArDo(short dataOffset, short dataOffsetMax, byte[] buf, short ofs) {
+        if (ofs >= dataOffset && ofs < dataOffsetMax) {
+            buf[(short) (ofs - dataOffset)] = (byte) 0xE2;
+        }
+        ofs++;
+        if (ofs >= dataOffset && ofs < dataOffsetMax) {
+            buf[(short) (ofs - dataOffset)] = 0;
+        }
+        return 2;
+    }
 
     /**
      * Convert a RuleEntry object to a REF-DO data object.
@@ -87,17 +583,14 @@ public class AramUtils {
      * @param entry rule entry
      * @return length of AR-DO payload
      */
-    public static byte buildArDo(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, RuleEntry entry) {
+    public static short buildArDo(short dataOffset, short dataOffsetMax, byte[] buf, short ofs, RuleEntry entry) {
         if (ofs >= dataOffset && ofs < dataOffsetMax) {
             buf[(short) (ofs - dataOffset)] = (byte) 0xE3;
         }
         ofs++;
-        if (ofs >= dataOffset && ofs < dataOffsetMax) {
-            buf[(short) (ofs - dataOffset)] = entry.getRuleLength();
-        }
-        ofs++;
+        ofs = buildLength(dataOffset, dataOffsetMax, buf, ofs, (short) (entry.getRuleLength() & 0xFF));
         entry.getRule(buf, ofs, dataOffset, dataOffsetMax);
-        return (byte) (entry.getRuleLength() + 2);
+        return getArDoLength(entry);
     }
 
     /**
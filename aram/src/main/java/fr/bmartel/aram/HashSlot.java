@@ -0,0 +1,187 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.Util;
+
+/**
+ * Certificate hash shared between rule entries.
+ * <p>
+ * Each distinct hash is stored once and reference counted, so rule entries granted to the same
+ * certificate point to the same slot and hash equality becomes a reference comparison. Each slot also
+ * links the rule entries referencing it, so the rules of a certificate are listed without a full scan.
+ *
+ * @author Bertrand Martel
+ */
+public class HashSlot extends PoolItem {
+
+    private static HashSlot first;
+    private static HashSlot deleted;
+
+    private byte[] hash;
+    private byte hashLength;
+
+    /**
+     * number of rule entries referencing this slot.
+     */
+    private short refCount;
+
+    /**
+     * first rule entry referencing this slot (secondary index by hash).
+     */
+    private RuleEntry entries;
+
+    /**
+     * init properties.
+     */
+    private HashSlot() {
+        hash = new byte[AccessRuleMaster.SIZE_HASH];
+    }
+
+    /**
+     * Search an existing slot by hash value.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the hash
+     * @param len length of the hash
+     * @return hash slot or null if this hash is not stored
+     */
+    static HashSlot search(byte[] buf, short ofs, byte len) {
+        for (HashSlot slot = first; slot != null; slot = (HashSlot) slot.next) {
+            if (slot.hashLength != len) continue;
+            if (Util.arrayCompare(slot.hash, (short) 0, buf, ofs, len) == 0)
+                return slot;
+        }
+        return null;
+    }
+
+    /**
+     * Get a reference on the slot holding this hash, allocating a new slot if needed.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the hash
+     * @param len length of the hash
+     * @return hash slot with its reference count incremented
+     */
+    static HashSlot acquire(byte[] buf, short ofs, byte len) {
+        HashSlot slot = search(buf, ofs, len);
+        if (slot == null) {
+            if (deleted == null) {
+                slot = new HashSlot();
+            } else {
+                slot = deleted;
+                deleted = (HashSlot) slot.next;
+            }
+            AramUtils.updateArray(buf, ofs, slot.hash, (short) 0, len);
+            if (slot.hashLength != len) {
+                slot.hashLength = len;
+            }
+            slot.link();
+        }
+        slot.refCount++;
+        return slot;
+    }
+
+    /**
+     * Drop a reference on this slot, the slot is recycled when no rule entry references it anymore.
+     */
+    void release() {
+        refCount--;
+        if (refCount <= 0) {
+            remove();
+            next = deleted;
+            deleted = this;
+        }
+    }
+
+    /**
+     * insert this slot at the head of the active list.
+     */
+    private void link() {
+        first = (HashSlot) linkTo(first);
+    }
+
+    /**
+     * Check if this slot holds a hash value.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the hash
+     * @param len length of the hash
+     * @return true if the hash is equal
+     */
+    boolean matches(byte[] buf, short ofs, byte len) {
+        return hashLength == len && Util.arrayCompare(hash, (short) 0, buf, ofs, len) == 0;
+    }
+
+    /**
+     * Get the number of recycled slots.
+     *
+     * @return length of the free list
+     */
+    static short getRecycledCount() {
+        return count(deleted);
+    }
+
+    /**
+     * Drop up to budget recycled slots so that they can be reclaimed by object deletion.
+     *
+     * @param budget maximum number of slots to drop
+     * @return number of slots dropped
+     */
+    static short trim(short budget) {
+        short count = count(deleted);
+        if (count > budget) {
+            count = budget;
+        }
+        deleted = (HashSlot) drop(deleted, count);
+        return count;
+    }
+
+    /**
+     * remove this slot from the active list.
+     */
+    private void remove() {
+        first = (HashSlot) unlinkFrom(first);
+    }
+
+    byte[] getHash() {
+        return hash;
+    }
+
+    public byte getHashLength() {
+        return hashLength;
+    }
+
+    public short getRefCount() {
+        return refCount;
+    }
+
+    RuleEntry getEntries() {
+        return entries;
+    }
+
+    void setEntries(RuleEntry entries) {
+        this.entries = entries;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.JCSystem;
+
+/**
+ * GET SPECIFIC hits per rule entry.
+ * <p>
+ * Hits are counted in a few RAM slots and added to the persistent heat of each entry when the slots are
+ * full, when the applet is deselected or before the heat is read, so a hit does not cost a persistent
+ * write.
+ *
+ * @author Bertrand Martel
+ */
+public class HeatCounter {
+
+    /**
+     * number of entries with pending hits.
+     */
+    final static byte SLOTS = 8;
+
+    private static Object[] entries;
+
+    private static byte[] hits;
+
+    /**
+     * allocate the transient arrays on first use.
+     */
+    private static void init() {
+        if (entries != null)
+            return;
+        entries = JCSystem.makeTransientObjectArray(SLOTS, JCSystem.CLEAR_ON_RESET);
+        hits = JCSystem.makeTransientByteArray(SLOTS, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Count a GET SPECIFIC hit on a rule entry.
+     *
+     * @param entry rule entry returned
+     */
+    static void hit(RuleEntry entry) {
+        init();
+        short free = -1;
+        for (short i = 0; i < SLOTS; i++) {
+            if (entries[i] == entry) {
+                if (hits[i] != (byte) 0xFF) {
+                    hits[i]++;
+                }
+                return;
+            }
+            if (free < 0 && entries[i] == null) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            flush();
+            free = 0;
+        }
+        entries[free] = entry;
+        hits[free] = 1;
+    }
+
+    /**
+     * Drop the pending hits of a rule entry being deleted.
+     *
+     * @param entry rule entry
+     */
+    static void forget(RuleEntry entry) {
+        if (entries == null)
+            return;
+        for (short i = 0; i < SLOTS; i++) {
+            if (entries[i] == entry) {
+                entries[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Add the pending hits to the heat of the rule entries.
+     */
+    static void flush() {
+        if (entries == null)
+            return;
+        for (short i = 0; i < SLOTS; i++) {
+            if (entries[i] != null) {
+                ((RuleEntry) entries[i]).addHeat((short) (hits[i] & 0xFF));
+                entries[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * RAM cache of the most recent (AID, hash) lookups.
+ * <p>
+ * Each slot holds a REF-DO key and the rule entry it resolved to, or null for a key without rule
+ * entry. Slots are kept in most recently used order and the least recently used slot is reused on
+ * insertion. The whole cache is invalidated when a rule entry is stored, updated or deleted.
+ *
+ * @author Bertrand Martel
+ */
+public class LookupCache {
+
+    /**
+     * no cache slot.
+     */
+    final static short NONE = -1;
+
+    /**
+     * number of cached keys.
+     */
+    final static byte SLOTS = 4;
+
+    /**
+     * key size : aid length, aid, hash length, hash.
+     */
+    private final static short SIZE_KEY = (short) (2 + AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH);
+
+    private final static byte STATE_COUNT = 0;
+    private final static byte STATE_HITS = 1;
+    private final static byte STATE_MISSES = 2;
+
+    private static byte[] keys;
+
+    private static Object[] entries;
+
+    /**
+     * slot indexes in most recently used order.
+     */
+    private static byte[] order;
+
+    /**
+     * number of valid slots, hit & miss counters.
+     */
+    private static short[] state;
+
+    /**
+     * allocate the transient arrays on first use.
+     */
+    private static void init() {
+        if (keys != null)
+            return;
+        keys = JCSystem.makeTransientByteArray((short) (SLOTS * SIZE_KEY), JCSystem.CLEAR_ON_RESET);
+        entries = JCSystem.makeTransientObjectArray(SLOTS, JCSystem.CLEAR_ON_RESET);
+        order = JCSystem.makeTransientByteArray(SLOTS, JCSystem.CLEAR_ON_RESET);
+        state = JCSystem.makeTransientShortArray((short) 3, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Check if a slot holds a key.
+     *
+     * @param slot    slot index
+     * @param buf     apdu buffer
+     * @param aidOfs  offset of the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset of the hash
+     * @param hashLen length of the hash
+     * @return true if the key matches
+     */
+    private static boolean matches(byte slot, byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
+        short ofs = (short) (slot * SIZE_KEY);
+        short hashKeyOfs = (short) (ofs + 1 + AccessRuleMaster.SIZE_AID);
+        return keys[ofs] == aidLen && keys[hashKeyOfs] == hashLen &&
+                Util.arrayCompare(keys, (short) (ofs + 1), buf, aidOfs, aidLen) == 0 &&
+                Util.arrayCompare(keys, (short) (hashKeyOfs + 1), buf, hashOfs, hashLen) == 0;
+    }
+
+    /**
+     * Move the slot at a position of the usage order to the front.
+     *
+     * @param position position in the usage order
+     * @return slot index
+     */
+    private static byte touch(short position) {
+        byte slot = order[position];
+        for (short i = position; i > 0; i--) {
+            order[i] = order[(short) (i - 1)];
+        }
+        order[0] = slot;
+        return slot;
+    }
+
+    /**
+     * Search a key in the cache.
+     *
+     * @param buf     apdu buffer
+     * @param aidOfs  offset of the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset of the hash
+     * @param hashLen length of the hash
+     * @return slot index or NONE if the key is not cached
+     */
+    static short lookup(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
+        init();
+        for (short i = 0; i < state[STATE_COUNT]; i++) {
+            if (matches(order[i], buf, aidOfs, aidLen, hashOfs, hashLen)) {
+                count(STATE_HITS);
+                return touch(i);
+            }
+        }
+        count(STATE_MISSES);
+        return NONE;
+    }
+
+    /**
+     * Increment a counter, saturating at its maximum value.
+     *
+     * @param index counter index
+     */
+    private static void count(byte index) {
+        if (state[index] != (short) 0x7FFF) {
+            state[index]++;
+        }
+    }
+
+    /**
+     * Get the rule entry cached in a slot.
+     *
+     * @param slot slot index
+     * @return rule entry or null if no rule entry matches the key
+     */
+    static RuleEntry getEntry(short slot) {
+        return (RuleEntry) entries[slot];
+    }
+
+    /**
+     * Cache the result of a lookup, replacing the least recently used slot when full.
+     *
+     * @param buf     apdu buffer
+     * @param aidOfs  offset of the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset of the hash
+     * @param hashLen length of the hash
+     * @param entry   rule entry or null if no rule entry matches the key
+     */
+    static void put(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, RuleEntry entry) {
+        init();
+        short position = state[STATE_COUNT];
+        if (position < SLOTS) {
+            order[position] = (byte) position;
+            state[STATE_COUNT]++;
+        } else {
+            position = (short) (SLOTS - 1);
+        }
+        byte slot = touch(position);
+        short ofs = (short) (slot * SIZE_KEY);
+        keys[ofs] = aidLen;
+        Util.arrayCopyNonAtomic(buf, aidOfs, keys, (short) (ofs + 1), aidLen);
+        ofs = (short) (ofs + 1 + AccessRuleMaster.SIZE_AID);
+        keys[ofs] = hashLen;
+        Util.arrayCopyNonAtomic(buf, hashOfs, keys, (short) (ofs + 1), hashLen);
+        entries[slot] = entry;
+    }
+
+    /**
+     * Drop all cached keys.
+     */
+    static void invalidate() {
+        if (keys == null)
+            return;
+        state[STATE_COUNT] = 0;
+        for (short i = 0; i < SLOTS; i++) {
+            entries[i] = null;
+        }
+    }
+
+    /**
+     * Get the number of lookups served from the cache.
+     *
+     * @return hit count
+     */
+    static short getHits() {
+        init();
+        return state[STATE_HITS];
+    }
+
+    /**
+     * Get the number of lookups not found in the cache.
+     *
+     * @return miss count
+     */
+    static short getMisses() {
+        init();
+        return state[STATE_MISSES];
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+/**
+ * Object of a pool (rule entries, aid groups, hash & rule slots).
+ * <p>
+ * Each pool keeps its active objects in a doubly linked list and its recycled objects in a free list,
+ * both linked through next. Pools own their list heads, the list operations are shared here.
+ *
+ * @author Bertrand Martel
+ */
+public abstract class PoolItem {
+
+    PoolItem next;
+    PoolItem prev;
+
+    /**
+     * insert this object at the head of a list.
+     *
+     * @param head first object of the list
+     * @return new first object
+     */
+    PoolItem linkTo(PoolItem head) {
+        prev = null;
+        next = head;
+        if (head != null) {
+            head.prev = this;
+        }
+        return this;
+    }
+
+    /**
+     * remove this object from a list.
+     *
+     * @param head first object of the list
+     * @return new first object
+     */
+    PoolItem unlinkFrom(PoolItem head) {
+        if (prev == null) {
+            head = next;
+        } else {
+            prev.next = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        }
+        return head;
+    }
+
+    /**
+     * Get the length of a free list.
+     *
+     * @param item first recycled object
+     * @return number of recycled objects
+     */
+    static short count(PoolItem item) {
+        short count = 0;
+        for (; item != null; item = item.next) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drop up to budget objects from the head of a free list so that they can be reclaimed by object
+     * deletion.
+     *
+     * @param item   first recycled object
+     * @param budget maximum number of objects to drop
+     * @return first object left in the free list
+     */
+    static PoolItem drop(PoolItem item, short budget) {
+        while (item != null && budget > 0) {
+            PoolItem successor = item.next;
+            item.next = null;
+            item = successor;
+            budget--;
+        }
+        return item;
+    }
+}
@@ -28,32 +28,53 @@ import javacard.framework.Util;
 
 /**
  * Rule Entry model used to store aid, hash and rule.
+ * <p>
+ * Entries are kept in a flat list (GET ALL order) and in the list of their aid group.
  *
  * @author Bertrand Martel
  */
-public class RuleEntry {
+public class RuleEntry extends PoolItem {
 
-    private RuleEntry next;
     private static RuleEntry first;
     private static RuleEntry deleted;
 
-    private byte[] aid;
-    private byte[] hash;
-    private byte[] rule;
+    /**
+     * number of entries in the active list & number of deleted entries not unlinked yet.
+     */
+    private static short size;
+    private static short tombstones;
+
+    /**
+     * set on deletion, the entry stays linked until the next purge.
+     */
+    private boolean tombstone;
 
-    private byte aidLength;
-    private byte hashLength;
-    private byte ruleLength;
+    /**
+     * number of GET SPECIFIC hits, saturated at 0xFF and halved by each sort.
+     */
+    private byte heat;
+
+    /**
+     * links between the entries of the same aid group.
+     */
+    private RuleEntry groupNext;
+    private RuleEntry groupPrev;
+
+    /**
+     * links between the entries of the same hash slot.
+     */
+    private RuleEntry hashNext;
+    private RuleEntry hashPrev;
+
+    private AidGroup group;
+    private HashSlot hash;
+    private RuleSlot rule;
 
     /**
      * init properties.
      */
     private RuleEntry() {
-        aid = new byte[AccessRuleMaster.SIZE_AID];
-        hash = new byte[AccessRuleMaster.SIZE_HASH];
-        rule = new byte[AccessRuleMaster.SIZE_RULE];
-        next = first;
-        first = this;
+        link();
     }
 
     /**
@@ -66,13 +87,24 @@ public class RuleEntry {
             return new RuleEntry();
         } else {
             RuleEntry instance = deleted;
-            deleted = instance.next;
-            instance.next = first;
-            first = instance;
+            deleted = (RuleEntry) instance.next;
+            instance.link();
+            if (instance.heat != 0) {
+                instance.heat = 0;
+            }
             return instance;
         }
     }
 
+    /**
+     * insert this entry at the head of the active list.
+     */
+    private void link() {
+        tombstone = false;
+        size++;
+        first = (RuleEntry) linkTo(first);
+    }
+
     /**
      * Search by aid.
      *
@@ -82,12 +114,10 @@ public class RuleEntry {
      * @return rune entry or null if not found
      */
     static RuleEntry searchAid(byte[] buf, short ofs, byte len) {
-        for (RuleEntry re = first; re != null; re = re.next) {
-            if (re.aidLength != len) continue;
-            if (Util.arrayCompare(re.aid, (short) 0, buf, ofs, len) == 0)
-                return re;
-        }
-        return null;
+        AidGroup group = AidGroup.search(buf, ofs, len);
+        if (group == null)
+            return null;
+        return getGroupFirst(group);
     }
 
     /**
@@ -101,13 +131,60 @@ public class RuleEntry {
      * @return rule entry or null if not found
      */
     static RuleEntry searchAidHash(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
-        for (RuleEntry re = first; re != null; re = re.next) {
-            if (re.aidLength != aidLen || re.hashLength != hashLen) continue;
-            if (Util.arrayCompare(re.aid, (short) 0, buf, aidOfs, aidLen) == 0 &&
-                    Util.arrayCompare(re.hash, (short) 0, buf, hashOfs, hashLen) == 0)
-                return re;
+        short cached = LookupCache.lookup(buf, aidOfs, aidLen, hashOfs, hashLen);
+        if (cached != LookupCache.NONE)
+            return LookupCache.getEntry(cached);
+        RuleEntry re = resolveAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
+        LookupCache.put(buf, aidOfs, aidLen, hashOfs, hashLen, re);
+        return re;
+    }
+
+    /**
+     * Search by aid & hash without the lookup cache.
+     *
+     * @param buf     apdu buffer
+     * @param aidOfs  offset for the start of aid
+     * @param aidLen  length of the aid to search
+     * @param hashOfs offset for the start of hash
+     * @param hashLen length of the hash to search
+     * @return rule entry or null if not found
+     */
+    static RuleEntry resolveAidHash(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
+        if (!RuleFilter.mightContain(buf, aidOfs, aidLen, hashOfs, hashLen))
+            return null;
+        AidGroup group = AidGroup.search(buf, aidOfs, aidLen);
+        if (group == null)
+            return null;
+        HashSlot slot = HashSlot.search(buf, hashOfs, hashLen);
+        if (slot == null)
+            return null;
+        return searchGroup(group.getEntries(), slot, null);
+    }
+
+    /**
+     * Resolve the effective rule for an aid & hash. Rules are searched from the most specific to the least
+     * specific : aid & hash, aid with any hash (empty hash), any aid (empty aid) with hash and finally any aid
+     * with any hash. Each level is a single indexed lookup.
+     *
+     * @param buf     apdu buffer
+     * @param aidOfs  offset for the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset for the hash
+     * @param hashLen length of the hash
+     * @return most specific rule entry or null if no rule applies
+     */
+    static RuleEntry resolve(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
+        RuleEntry re = searchAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
+        if (re == null && hashLen != 0) {
+            re = searchAidHash(buf, aidOfs, aidLen, hashOfs, (byte) 0);
         }
-        return null;
+        if (re == null && aidLen != 0) {
+            re = searchAidHash(buf, aidOfs, (byte) 0, hashOfs, hashLen);
+            if (re == null && hashLen != 0) {
+                re = searchAidHash(buf, aidOfs, (byte) 0, hashOfs, (byte) 0);
+            }
+        }
+        return re;
     }
 
     /**
@@ -123,11 +200,31 @@ public class RuleEntry {
      * @return rule entry or null if not found
      */
     static RuleEntry searchAidHashRule(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short ruleOfs, byte ruleLen) {
-        for (RuleEntry re = first; re != null; re = re.next) {
-            if (re.aidLength != aidLen || re.hashLength != hashLen || re.ruleLength != ruleLen) continue;
-            if (Util.arrayCompare(re.aid, (short) 0, buf, aidOfs, aidLen) == 0 &&
-                    Util.arrayCompare(re.hash, (short) 0, buf, hashOfs, hashLen) == 0 &&
-                    Util.arrayCompare(re.rule, (short) 0, buf, ruleOfs, ruleLen) == 0)
+        if (!RuleFilter.mightContain(buf, aidOfs, aidLen, hashOfs, hashLen))
+            return null;
+        AidGroup group = AidGroup.search(buf, aidOfs, aidLen);
+        if (group == null)
+            return null;
+        HashSlot slot = HashSlot.search(buf, hashOfs, hashLen);
+        if (slot == null)
+            return null;
+        RuleSlot ruleSlot = RuleSlot.search(buf, ruleOfs, ruleLen);
+        if (ruleSlot == null)
+            return null;
+        return searchGroup(group.getEntries(), slot, ruleSlot);
+    }
+
+    /**
+     * Search the entries of an aid group by hash slot & optionally rule slot.
+     *
+     * @param from     first entry of the group to check
+     * @param slot     hash slot to match
+     * @param ruleSlot rule slot to match or null to match any rule
+     * @return rule entry or null if not found
+     */
+    private static RuleEntry searchGroup(RuleEntry from, HashSlot slot, RuleSlot ruleSlot) {
+        for (RuleEntry re = from; re != null; re = re.groupNext) {
+            if (!re.tombstone && re.hash == slot && (ruleSlot == null || re.rule == ruleSlot))
                 return re;
         }
         return null;
@@ -139,20 +236,80 @@ public class RuleEntry {
      * @return
      */
     public static RuleEntry getFirst() {
-        return first;
+        return skipDeleted(first);
     }
 
     /**
-     * remove this entry.
+     * get the number of entries not deleted.
+     *
+     * @return rule count
      */
-    private void remove() {
-        if (first == this) {
-            first = next;
-        } else {
-            for (RuleEntry re = first; re != null; re = re.next)
-                if (re.next == this)
-                    re.next = next;
+    static short getCount() {
+        return (short) (size - tombstones);
+    }
+
+    /**
+     * get the first entry of a hash slot.
+     *
+     * @param slot hash slot
+     * @return first entry not deleted or null
+     */
+    static RuleEntry getHashFirst(HashSlot slot) {
+        RuleEntry re = slot.getEntries();
+        while (re != null && re.tombstone) {
+            re = re.hashNext;
+        }
+        return re;
+    }
+
+    /**
+     * get the next entry of the same hash slot.
+     *
+     * @return next rule entry referencing the same hash
+     */
+    RuleEntry getHashNext() {
+        RuleEntry re = hashNext;
+        while (re != null && re.tombstone) {
+            re = re.hashNext;
+        }
+        return re;
+    }
+
+    /**
+     * get the first entry of an aid group.
+     *
+     * @param group aid group
+     * @return first entry not deleted or null
+     */
+    static RuleEntry getGroupFirst(AidGroup group) {
+        RuleEntry re = group.getEntries();
+        while (re != null && re.tombstone) {
+            re = re.groupNext;
+        }
+        return re;
+    }
+
+    /**
+     * skip the deleted entries of the active list.
+     *
+     * @param re entry to start from
+     * @return first entry not deleted or null
+     */
+    private static RuleEntry skipDeleted(RuleEntry re) {
+        while (re != null && re.tombstone) {
+            re = (RuleEntry) re.next;
         }
+        return re;
+    }
+
+    /**
+     * remove this entry (constant time using back-link).
+     */
+    private void remove() {
+        LookupCache.invalidate();
+        HeatCounter.forget(this);
+        size--;
+        first = (RuleEntry) unlinkFrom(first);
     }
 
     /**
@@ -160,12 +317,78 @@ public class RuleEntry {
      */
     private void recycle() {
         next = deleted;
-        aidLength = 0;
-        hashLength = 0;
-        ruleLength = 0;
+        leaveGroup();
+        if (hash != null) {
+            leaveHash();
+            hash.release();
+            hash = null;
+        }
+        if (rule != null) {
+            rule.release();
+            rule = null;
+        }
         deleted = this;
     }
 
+    /**
+     * add this entry to the entries of its hash slot.
+     */
+    private void joinHash() {
+        hashPrev = null;
+        hashNext = hash.getEntries();
+        if (hashNext != null) {
+            hashNext.hashPrev = this;
+        }
+        hash.setEntries(this);
+    }
+
+    /**
+     * remove this entry from the entries of its hash slot.
+     */
+    private void leaveHash() {
+        if (hashPrev == null) {
+            hash.setEntries(hashNext);
+        } else {
+            hashPrev.hashNext = hashNext;
+        }
+        if (hashNext != null) {
+            hashNext.hashPrev = hashPrev;
+        }
+    }
+
+    /**
+     * add this entry to the entries of an aid group.
+     *
+     * @param aidGroup group to join
+     */
+    private void joinGroup(AidGroup aidGroup) {
+        groupPrev = null;
+        groupNext = aidGroup.getEntries();
+        if (groupNext != null) {
+            groupNext.groupPrev = this;
+        }
+        aidGroup.setEntries(this);
+        group = aidGroup;
+    }
+
+    /**
+     * remove this entry from its aid group, the group is released with its last entry.
+     */
+    private void leaveGroup() {
+        if (group == null)
+            return;
+        if (groupPrev == null) {
+            group.setEntries(groupNext);
+        } else {
+            groupPrev.groupNext = groupNext;
+        }
+        if (groupNext != null) {
+            groupNext.groupPrev = groupPrev;
+        }
+        group.release();
+        group = null;
+    }
+
     /**
      * delete all rules
      */
@@ -176,8 +399,184 @@ public class RuleEntry {
             re.remove();
             re.recycle();
             JCSystem.commitTransaction();
+            Telemetry.count(Telemetry.TRANSACTION);
             re = first;
         }
+        tombstones = 0;
+        RuleFilter.rebuild();
+    }
+
+    /**
+     * mark this entry as deleted with a single write, it is unlinked by the next purge.
+     */
+    private void bury() {
+        LookupCache.invalidate();
+        HeatCounter.forget(this);
+        tombstone = true;
+        if (tombstones != (short) 0x7FFF) {
+            tombstones++;
+        }
+    }
+
+    /**
+     * unlink & recycle all the deleted entries in one pass, then rebuild the REF-DO filter once to drop
+     * their keys (deleted keys only cause filter false positives until then).
+     */
+    static void purge() {
+        boolean purged = false;
+        RuleEntry re = first;
+        while (re != null) {
+            RuleEntry successor = (RuleEntry) re.next;
+            if (re.tombstone) {
+                JCSystem.beginTransaction();
+                re.remove();
+                re.recycle();
+                JCSystem.commitTransaction();
+                Telemetry.count(Telemetry.TRANSACTION);
+                purged = true;
+            }
+            re = successor;
+        }
+        tombstones = 0;
+        if (purged) {
+            RuleFilter.rebuild();
+        }
+    }
+
+    /**
+     * purge once more than half of the linked entries are deleted.
+     */
+    private static void purgeIfNeeded() {
+        if (tombstones > (short) (size >> 1)) {
+            purge();
+        }
+    }
+
+    /**
+     * Get the number of recycled entries.
+     *
+     * @return length of the free list
+     */
+    static short getRecycledCount() {
+        return count(deleted);
+    }
+
+    /**
+     * Move the hottest entries of each aid group to the head of the group, so that they are found first
+     * by the searches. Entries with the same heat keep their order. Each group is sorted in its own
+     * transaction, then the heat of its entries is halved so that the next sort follows the recent hits
+     * instead of saturated counts.
+     */
+    static void sortByHeat() {
+        HeatCounter.flush();
+        LookupCache.invalidate();
+        for (AidGroup group = AidGroup.getFirst(); group != null; group = group.getNext()) {
+            JCSystem.beginTransaction();
+            sortGroup(group);
+            coolGroup(group);
+            JCSystem.commitTransaction();
+            Telemetry.count(Telemetry.TRANSACTION);
+        }
+    }
+
+    /**
+     * Halve the heat of the entries of an aid group.
+     *
+     * @param group aid group
+     */
+    private static void coolGroup(AidGroup group) {
+        for (RuleEntry re = group.getEntries(); re != null; re = re.groupNext) {
+            if (re.heat != 0) {
+                re.heat = (byte) ((short) (re.heat & 0xFF) >> 1);
+            }
+        }
+    }
+
+    /**
+     * Insertion sort of the entries of an aid group by decreasing heat.
+     *
+     * @param group aid group
+     */
+    private static void sortGroup(AidGroup group) {
+        RuleEntry re = group.getEntries();
+        if (re == null)
+            return;
+        re = re.groupNext;
+        while (re != null) {
+            RuleEntry successor = re.groupNext;
+            short heat = re.getHeat();
+            RuleEntry target = re.groupPrev;
+            if (target.getHeat() < heat) {
+                while (target.groupPrev != null && target.groupPrev.getHeat() < heat) {
+                    target = target.groupPrev;
+                }
+                re.groupPrev.groupNext = re.groupNext;
+                if (re.groupNext != null) {
+                    re.groupNext.groupPrev = re.groupPrev;
+                }
+                re.groupPrev = target.groupPrev;
+                re.groupNext = target;
+                if (target.groupPrev == null) {
+                    group.setEntries(re);
+                } else {
+                    target.groupPrev.groupNext = re;
+                }
+                target.groupPrev = re;
+            }
+            re = successor;
+        }
+    }
+
+    /**
+     * Drop up to budget recycled entries so that they can be reclaimed by object deletion.
+     *
+     * @param budget maximum number of entries to drop
+     * @return number of entries dropped
+     */
+    static short trim(short budget) {
+        short count = count(deleted);
+        if (count > budget) {
+            count = budget;
+        }
+        deleted = (RuleEntry) drop(deleted, count);
+        return count;
+    }
+
+    /**
+     * Drop up to budget recycled objects (entries, aid groups, hash & rule slots) and request their
+     * deletion. Nothing is dropped when object deletion is not supported since the memory of dropped
+     * objects would never be reclaimed.
+     *
+     * @param budget maximum number of objects to drop
+     * @return number of objects dropped
+     */
+    static short compact(short budget) {
+        if (!JCSystem.isObjectDeletionSupported())
+            return 0;
+        short count = trim(budget);
+        count += AidGroup.trim((short) (budget - count));
+        count += HashSlot.trim((short) (budget - count));
+        count += RuleSlot.trim((short) (budget - count));
+        if (count > 0) {
+            JCSystem.requestObjectDeletion();
+        }
+        return count;
+    }
+
+    /**
+     * Compact only the recycled objects in excess of a reserve, so that the next stores still reuse
+     * recycled objects instead of allocating new ones.
+     *
+     * @param reserve number of recycled objects kept for reuse
+     * @param budget  maximum number of objects to drop
+     * @return number of objects dropped
+     */
+    static short compactAbove(short reserve, short budget) {
+        short excess = (short) (getRecycledCount() + AidGroup.getRecycledCount() + HashSlot.getRecycledCount()
+                + RuleSlot.getRecycledCount() - reserve);
+        if (excess <= 0)
+            return 0;
+        return compact(excess < budget ? excess : budget);
     }
 
     /**
@@ -190,12 +589,11 @@ public class RuleEntry {
     static void deleteAid(byte[] buf, short ofs, byte len) {
         RuleEntry re = searchAid(buf, ofs, len);
         while (re != null) {
-            JCSystem.beginTransaction();
-            re.remove();
-            re.recycle();
-            JCSystem.commitTransaction();
-            re = searchAid(buf, ofs, len);
+            RuleEntry successor = re.getGroupNext();
+            re.bury();
+            re = successor;
         }
+        purgeIfNeeded();
     }
 
     /**
@@ -208,14 +606,13 @@ public class RuleEntry {
      * @param hashLen length of the hash
      */
     static void deleteAidHash(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
-        RuleEntry re = searchAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
-        while (re != null) {
-            JCSystem.beginTransaction();
-            re.remove();
-            re.recycle();
-            JCSystem.commitTransaction();
-            re = searchAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
-        }
+        AidGroup group = AidGroup.search(buf, aidOfs, aidLen);
+        if (group == null)
+            return;
+        HashSlot slot = HashSlot.search(buf, hashOfs, hashLen);
+        if (slot == null)
+            return;
+        deleteGroup(group, slot, null);
     }
 
     /**
@@ -230,14 +627,32 @@ public class RuleEntry {
      * @param ruleLen length of tule
      */
     static void deleteAidHashRule(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short ruleOfs, byte ruleLen) {
-        RuleEntry re = searchAidHashRule(buf, aidOfs, aidLen, hashOfs, hashLen, ruleOfs, ruleLen);
+        AidGroup group = AidGroup.search(buf, aidOfs, aidLen);
+        if (group == null)
+            return;
+        HashSlot slot = HashSlot.search(buf, hashOfs, hashLen);
+        if (slot == null)
+            return;
+        RuleSlot ruleSlot = RuleSlot.search(buf, ruleOfs, ruleLen);
+        if (ruleSlot == null)
+            return;
+        deleteGroup(group, slot, ruleSlot);
+    }
+
+    /**
+     * delete the entries of an aid group matching hash slot & optionally rule slot.
+     *
+     * @param group    aid group
+     * @param slot     hash slot to match
+     * @param ruleSlot rule slot to match or null to match any rule
+     */
+    private static void deleteGroup(AidGroup group, HashSlot slot, RuleSlot ruleSlot) {
+        RuleEntry re = searchGroup(group.getEntries(), slot, ruleSlot);
         while (re != null) {
-            JCSystem.beginTransaction();
-            re.remove();
-            re.recycle();
-            JCSystem.commitTransaction();
-            re = searchAidHashRule(buf, aidOfs, aidLen, hashOfs, hashLen, ruleOfs, ruleLen);
+            re.bury();
+            re = searchGroup(re.groupNext, slot, ruleSlot);
         }
+        purgeIfNeeded();
     }
 
     /**
@@ -248,12 +663,16 @@ public class RuleEntry {
      * @return total length of data in apdu buffer
      */
     short getAid(byte[] buf, short ofs) {
-        Util.arrayCopy(aid, (short) 0, buf, ofs, aidLength);
-        return (short) (ofs + aidLength);
+        if (group == null)
+            return ofs;
+        Util.arrayCopy(group.getAid(), (short) 0, buf, ofs, group.getAidLength());
+        return (short) (ofs + group.getAidLength());
     }
 
     short getAid(byte[] buf, short ofs, short dataOffset, short dataOffsetMax) {
-        return getOffsetData(aidLength, aid, buf, ofs, dataOffset, dataOffsetMax);
+        if (group == null)
+            return ofs;
+        return getOffsetData(group.getAidLength(), group.getAid(), buf, ofs, dataOffset, dataOffsetMax);
     }
 
     /**
@@ -264,12 +683,16 @@ public class RuleEntry {
      * @return total length of data in apdu buffer
      */
     short getHash(byte[] buf, short ofs) {
-        Util.arrayCopy(hash, (short) 0, buf, ofs, hashLength);
-        return (short) (ofs + hashLength);
+        if (hash == null)
+            return ofs;
+        Util.arrayCopy(hash.getHash(), (short) 0, buf, ofs, hash.getHashLength());
+        return (short) (ofs + hash.getHashLength());
     }
 
     short getHash(byte[] buf, short ofs, short dataOffset, short dataOffsetMax) {
-        return getOffsetData(hashLength, hash, buf, ofs, dataOffset, dataOffsetMax);
+        if (hash == null)
+            return ofs;
+        return getOffsetData(hash.getHashLength(), hash.getHash(), buf, ofs, dataOffset, dataOffsetMax);
     }
 
     /**
@@ -280,12 +703,27 @@ public class RuleEntry {
      * @return total length of data in apdu buffer
      */
     short getRule(byte[] buf, short ofs) {
-        Util.arrayCopy(rule, (short) 0, buf, ofs, ruleLength);
-        return (short) (ofs + ruleLength);
+        if (rule == null)
+            return ofs;
+        Util.arrayCopy(rule.getRule(), (short) 0, buf, ofs, rule.getRuleLength());
+        return (short) (ofs + rule.getRuleLength());
+    }
+
+    /**
+     * Check if this entry's rule grants access to a command.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the command header
+     * @return true if access is allowed
+     */
+    boolean allows(byte[] buf, short ofs) {
+        return rule != null && rule.allows(buf, ofs);
     }
 
     short getRule(byte[] buf, short ofs, short dataOffset, short dataOffsetMax) {
-        return getOffsetData(ruleLength, rule, buf, ofs, dataOffset, dataOffsetMax);
+        if (rule == null)
+            return ofs;
+        return getOffsetData(rule.getRuleLength(), rule.getRule(), buf, ofs, dataOffset, dataOffsetMax);
     }
 
     /**
@@ -315,19 +753,92 @@ public class RuleEntry {
     }
 
     public byte getAidLength() {
-        return aidLength;
+        if (group == null)
+            return 0;
+        return group.getAidLength();
+    }
+
+    /**
+     * get the aid group of this entry.
+     *
+     * @return aid group or null if no aid was set
+     */
+    AidGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * get the next entry sharing the same aid.
+     *
+     * @return next entry of the aid group
+     */
+    RuleEntry getGroupNext() {
+        RuleEntry re = groupNext;
+        while (re != null && re.tombstone) {
+            re = re.groupNext;
+        }
+        return re;
     }
 
     public byte getHashLength() {
-        return hashLength;
+        if (hash == null)
+            return 0;
+        return hash.getHashLength();
+    }
+
+    /**
+     * get the shared slot holding this entry's hash.
+     *
+     * @return hash slot or null if no hash was set
+     */
+    HashSlot getHashSlot() {
+        return hash;
     }
 
     public byte getRuleLength() {
-        return ruleLength;
+        if (rule == null)
+            return 0;
+        return rule.getRuleLength();
+    }
+
+    /**
+     * get the shared slot holding this entry's rule.
+     *
+     * @return rule slot or null if no rule was set
+     */
+    RuleSlot getRuleSlot() {
+        return rule;
+    }
+
+    /**
+     * get the number of GET SPECIFIC hits on this entry.
+     *
+     * @return hit count (saturated at 0xFF)
+     */
+    public short getHeat() {
+        return (short) (heat & 0xFF);
+    }
+
+    /**
+     * add GET SPECIFIC hits to this entry.
+     *
+     * @param hits number of hits
+     */
+    void addHeat(short hits) {
+        short value = (short) (getHeat() + hits);
+        heat = value > 0xFF ? (byte) 0xFF : (byte) value;
     }
 
     public RuleEntry getNext() {
-        return next;
+        return skipDeleted((RuleEntry) next);
+    }
+
+    public RuleEntry getPrevious() {
+        RuleEntry re = (RuleEntry) prev;
+        while (re != null && re.tombstone) {
+            re = (RuleEntry) re.prev;
+        }
+        return re;
     }
 
     /**
@@ -338,8 +849,15 @@ public class RuleEntry {
      * @param len length of aid
      */
     public void setAid(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, aid, (short) 0, len);
-        aidLength = len;
+        if (group != null && group.getAidLength() == len && group.startsWith(buf, ofs, len))
+            return;
+        AidGroup aidGroup = AidGroup.acquire(buf, ofs, len);
+        if (aidGroup != group) {
+            leaveGroup();
+            joinGroup(aidGroup);
+            RuleFilter.add(this);
+            LookupCache.invalidate();
+        }
     }
 
     /**
@@ -350,8 +868,17 @@ public class RuleEntry {
      * @param len length of hash
      */
     public void setHash(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, hash, (short) 0, len);
-        hashLength = len;
+        if (hash != null && hash.matches(buf, ofs, len))
+            return;
+        HashSlot slot = HashSlot.acquire(buf, ofs, len);
+        if (hash != null) {
+            leaveHash();
+            hash.release();
+        }
+        hash = slot;
+        joinHash();
+        RuleFilter.add(this);
+        LookupCache.invalidate();
     }
 
     /**
@@ -362,7 +889,12 @@ public class RuleEntry {
      * @param len length of rule
      */
     public void setRule(byte[] buf, short ofs, byte len) {
-        Util.arrayCopy(buf, ofs, rule, (short) 0, len);
-        ruleLength = len;
+        if (rule != null && rule.matches(buf, ofs, len))
+            return;
+        RuleSlot slot = RuleSlot.acquire(buf, ofs, len);
+        if (rule != null) {
+            rule.release();
+        }
+        rule = slot;
     }
 }
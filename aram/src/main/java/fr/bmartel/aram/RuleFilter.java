@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.Util;
+
+/**
+ * Bloom filter over the REF-DO (AID, hash) keys of the stored rule entries.
+ * <p>
+ * A key is set with a few bit probes when a rule entry gets both its AID and its hash. A probe miss
+ * means that no rule entry matches this key, so GET SPECIFIC misses are rejected without searching
+ * the aid groups and the hash slots. Bits are never cleared on a single key : the filter is rebuilt
+ * from the rule list when the deleted entries are purged.
+ *
+ * @author Bertrand Martel
+ */
+public class RuleFilter {
+
+    /**
+     * filter size in bytes.
+     */
+    final static short SIZE_FILTER = 128;
+
+    /**
+     * number of bits probed per key.
+     */
+    final static byte PROBES = 3;
+
+    private final static short BIT_MASK = (short) (SIZE_FILTER * 8 - 1);
+
+    private static byte[] bits;
+
+    /**
+     * false while the filter is being rebuilt (a torn rebuild is done again on next lookup).
+     */
+    private static boolean valid;
+
+    /**
+     * allocate the filter on first use.
+     */
+    private static void init() {
+        if (bits != null)
+            return;
+        bits = new byte[SIZE_FILTER];
+        valid = true;
+    }
+
+    /**
+     * Compute a 16 bit hash of a (AID, hash) key.
+     *
+     * @param seed     initial value
+     * @param mul      multiplier
+     * @param aidBuf   buffer holding the aid
+     * @param aidOfs   offset of the aid
+     * @param aidLen   length of the aid
+     * @param hashBuf  buffer holding the hash
+     * @param hashOfs  offset of the hash
+     * @param hashLen  length of the hash
+     * @return hash value
+     */
+    private static short hashKey(short seed, short mul,
+                                 byte[] aidBuf, short aidOfs, byte aidLen,
+                                 byte[] hashBuf, short hashOfs, byte hashLen) {
+        short h = (short) (seed * mul + aidLen);
+        for (short i = 0; i < aidLen; i++) {
+            h = (short) (h * mul + (aidBuf[(short) (aidOfs + i)] & 0xFF));
+        }
+        h = (short) (h * mul + hashLen);
+        for (short i = 0; i < hashLen; i++) {
+            h = (short) (h * mul + (hashBuf[(short) (hashOfs + i)] & 0xFF));
+        }
+        return h;
+    }
+
+    /**
+     * Set or test the bits of a key.
+     *
+     * @param set     true to set the bits, false to test them
+     * @param aidBuf  buffer holding the aid
+     * @param aidOfs  offset of the aid
+     * @param aidLen  length of the aid
+     * @param hashBuf buffer holding the hash
+     * @param hashOfs offset of the hash
+     * @param hashLen length of the hash
+     * @return true if all the bits are set
+     */
+    private static boolean probe(boolean set,
+                                 byte[] aidBuf, short aidOfs, byte aidLen,
+                                 byte[] hashBuf, short hashOfs, byte hashLen) {
+        short h1 = hashKey((short) 0x1505, (short) 33, aidBuf, aidOfs, aidLen, hashBuf, hashOfs, hashLen);
+        short h2 = (short) (hashKey((short) 0x2B5D, (short) 31, aidBuf, aidOfs, aidLen, hashBuf, hashOfs, hashLen) | 1);
+        for (byte i = 0; i < PROBES; i++) {
+            short bit = (short) ((short) (h1 + i * h2) & BIT_MASK);
+            short index = (short) (bit >> 3);
+            byte mask = (byte) (1 << (bit & 7));
+            if (set) {
+                if ((bits[index] & mask) == 0) {
+                    bits[index] |= mask;
+                }
+            } else if ((bits[index] & mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the key of a rule entry.
+     *
+     * @param entry rule entry with aid & hash set
+     */
+    static void add(RuleEntry entry) {
+        init();
+        AidGroup group = entry.getGroup();
+        HashSlot slot = entry.getHashSlot();
+        if (group == null || slot == null)
+            return;
+        probe(true, group.getAid(), (short) 0, group.getAidLength(),
+                slot.getHash(), (short) 0, slot.getHashLength());
+    }
+
+    /**
+     * Check if a rule entry may match a (AID, hash) key.
+     *
+     * @param buf     apdu buffer
+     * @param aidOfs  offset of the aid
+     * @param aidLen  length of the aid
+     * @param hashOfs offset of the hash
+     * @param hashLen length of the hash
+     * @return false if no rule entry matches this key
+     */
+    static boolean mightContain(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen) {
+        init();
+        if (!valid)
+            rebuild();
+        return probe(false, buf, aidOfs, aidLen, buf, hashOfs, hashLen);
+    }
+
+    /**
+     * Rebuild the filter from the rule list, dropping the keys of deleted entries.
+     */
+    static void rebuild() {
+        init();
+        valid = false;
+        Util.arrayFillNonAtomic(bits, (short) 0, SIZE_FILTER, (byte) 0);
+        for (RuleEntry re = RuleEntry.getFirst(); re != null; re = re.getNext()) {
+            add(re);
+        }
+        valid = true;
+    }
+}
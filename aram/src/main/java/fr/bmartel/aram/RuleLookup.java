@@ -0,0 +1,63 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+/**
+ * Rule lookup shared with the other applets.
+ *
+ * @author Bertrand Martel
+ */
+class RuleLookup implements AccessRuleLookup {
+
+    public short getRule(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short ruleOfs) {
+        if (!checkLength(aidLen, hashLen))
+            return -1;
+        RuleEntry re = RuleEntry.searchAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
+        if (re == null)
+            return -1;
+        HeatCounter.hit(re);
+        return (short) (re.getRule(buf, ruleOfs) - ruleOfs);
+    }
+
+    public boolean isAllowed(byte[] buf, short aidOfs, byte aidLen, short hashOfs, byte hashLen, short headerOfs) {
+        if (!checkLength(aidLen, hashLen))
+            return false;
+        RuleEntry re = RuleEntry.searchAidHash(buf, aidOfs, aidLen, hashOfs, hashLen);
+        if (re == null)
+            return false;
+        HeatCounter.hit(re);
+        return re.allows(buf, headerOfs);
+    }
+
+    /**
+     * Check the aid & hash lengths given by the caller against the sizes of the stored values.
+     *
+     * @param aidLen  length of the aid
+     * @param hashLen length of the hash
+     * @return true if both lengths can match a stored rule
+     */
+    private static boolean checkLength(byte aidLen, byte hashLen) {
+        return aidLen >= 0 && aidLen <= AccessRuleMaster.SIZE_AID && hashLen >= 0 && hashLen <= AccessRuleMaster.SIZE_HASH;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.Util;
+
+/**
+ * AR-DO body shared between rule entries.
+ * <p>
+ * Rule bodies are content addressed : each distinct AR-DO is stored once with a digest of its content
+ * and reference counted. A slot is never modified while shared, updating the rule of an entry
+ * acquires the slot matching the new content and releases the previous one (copy on write).
+ *
+ * @author Bertrand Martel
+ */
+public class RuleSlot extends PoolItem {
+
+    private static RuleSlot first;
+    private static RuleSlot deleted;
+
+    private byte[] rule;
+    private byte ruleLength;
+
+    /**
+     * digest of the rule content used to skip byte comparison on mismatch.
+     */
+    private short digest;
+
+    /**
+     * number of rule entries referencing this slot.
+     */
+    private short refCount;
+
+    /**
+     * APDU access compiled from the APDU-AR-DO : never, always or filtered.
+     */
+    final static byte ACCESS_NEVER = 0;
+    final static byte ACCESS_ALWAYS = 1;
+    final static byte ACCESS_FILTER = 2;
+
+    private byte access;
+
+    /**
+     * offset in the rule of the APDU filters (4 bytes header followed by 4 bytes mask).
+     */
+    private byte filterOfs;
+
+    /**
+     * number of APDU filters.
+     */
+    private byte filterCount;
+
+    /**
+     * init properties.
+     */
+    private RuleSlot() {
+        rule = new byte[AccessRuleMaster.SIZE_RULE];
+    }
+
+    /**
+     * Compute the content digest of a rule.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the rule
+     * @param len length of the rule
+     * @return 16 bit digest
+     */
+    static short computeDigest(byte[] buf, short ofs, byte len) {
+        short digest = len;
+        for (short i = 0; i < len; i++) {
+            digest = (short) ((short) (digest * 31) + (buf[(short) (ofs + i)] & 0xFF));
+        }
+        return digest;
+    }
+
+    /**
+     * Search an existing slot by rule content.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the rule
+     * @param len length of the rule
+     * @return rule slot or null if this rule is not stored
+     */
+    static RuleSlot search(byte[] buf, short ofs, byte len) {
+        return search(buf, ofs, len, computeDigest(buf, ofs, len));
+    }
+
+    private static RuleSlot search(byte[] buf, short ofs, byte len, short digest) {
+        for (RuleSlot slot = first; slot != null; slot = (RuleSlot) slot.next) {
+            if (slot.digest != digest || slot.ruleLength != len) continue;
+            if (Util.arrayCompare(slot.rule, (short) 0, buf, ofs, len) == 0)
+                return slot;
+        }
+        return null;
+    }
+
+    /**
+     * Get a reference on the slot holding this rule, allocating a new slot if needed.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the rule
+     * @param len length of the rule
+     * @return rule slot with its reference count incremented
+     */
+    static RuleSlot acquire(byte[] buf, short ofs, byte len) {
+        short digest = computeDigest(buf, ofs, len);
+        RuleSlot slot = search(buf, ofs, len, digest);
+        if (slot == null) {
+            if (deleted == null) {
+                slot = new RuleSlot();
+            } else {
+                slot = deleted;
+                deleted = (RuleSlot) slot.next;
+            }
+            AramUtils.updateArray(buf, ofs, slot.rule, (short) 0, len);
+            if (slot.ruleLength != len) {
+                slot.ruleLength = len;
+            }
+            if (slot.digest != digest) {
+                slot.digest = digest;
+            }
+            slot.compile();
+            slot.link();
+        }
+        slot.refCount++;
+        return slot;
+    }
+
+    /**
+     * Locate the APDU-AR-DO of the rule and set the APDU access of this slot. The rule is denied when it
+     * has no APDU-AR-DO or when the APDU-AR-DO is malformed.
+     */
+    private void compile() {
+        byte mode = ACCESS_NEVER;
+        short ofs = 0;
+        short count = 0;
+        short end = 0;
+        short length = (short) (ruleLength & 0xFF);
+        while (end < length) {
+            byte tag = rule[end++];
+            if (end >= length)
+                break;
+            short len = (short) (rule[end++] & 0xFF);
+            if (len == 0x81 && end < length) {
+                len = (short) (rule[end++] & 0xFF);
+            }
+            if ((short) (end + len) > length)
+                break;
+            if (tag == (byte) 0xD0) {
+                if (len == 1) {
+                    mode = rule[end] == 1 ? ACCESS_ALWAYS : ACCESS_NEVER;
+                } else if (len != 0 && (len & 7) == 0) {
+                    mode = ACCESS_FILTER;
+                    ofs = end;
+                    count = (short) (len >> 3);
+                }
+                break;
+            }
+            end += len;
+        }
+        if (access != mode) {
+            access = mode;
+        }
+        if (filterOfs != (byte) ofs) {
+            filterOfs = (byte) ofs;
+        }
+        if (filterCount != (byte) count) {
+            filterCount = (byte) count;
+        }
+    }
+
+    /**
+     * Check if this rule grants access to a command.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the command header (CLA INS P1 P2)
+     * @return true if the APDU-AR-DO is always or if one filter matches the header
+     */
+    boolean allows(byte[] buf, short ofs) {
+        if (access != ACCESS_FILTER)
+            return access == ACCESS_ALWAYS;
+        short filter = (short) (filterOfs & 0xFF);
+        for (short i = 0; i < filterCount; i++) {
+            short j = 0;
+            while (j < 4 && ((buf[(short) (ofs + j)] ^ rule[(short) (filter + j)]) & rule[(short) (filter + 4 + j)]) == 0) {
+                j++;
+            }
+            if (j == 4)
+                return true;
+            filter += 8;
+        }
+        return false;
+    }
+
+    /**
+     * Drop a reference on this slot, the slot is recycled when no rule entry references it anymore.
+     */
+    void release() {
+        refCount--;
+        if (refCount <= 0) {
+            remove();
+            next = deleted;
+            deleted = this;
+        }
+    }
+
+    /**
+     * insert this slot at the head of the active list.
+     */
+    private void link() {
+        first = (RuleSlot) linkTo(first);
+    }
+
+    /**
+     * Check if this slot holds a rule value.
+     *
+     * @param buf apdu buffer
+     * @param ofs offset for the rule
+     * @param len length of the rule
+     * @return true if the rule is equal
+     */
+    boolean matches(byte[] buf, short ofs, byte len) {
+        return ruleLength == len && Util.arrayCompare(rule, (short) 0, buf, ofs, len) == 0;
+    }
+
+    /**
+     * Get the number of recycled slots.
+     *
+     * @return length of the free list
+     */
+    static short getRecycledCount() {
+        return count(deleted);
+    }
+
+    /**
+     * Drop up to budget recycled slots so that they can be reclaimed by object deletion.
+     *
+     * @param budget maximum number of slots to drop
+     * @return number of slots dropped
+     */
+    static short trim(short budget) {
+        short count = count(deleted);
+        if (count > budget) {
+            count = budget;
+        }
+        deleted = (RuleSlot) drop(deleted, count);
+        return count;
+    }
+
+    /**
+     * remove this slot from the active list.
+     */
+    private void remove() {
+        first = (RuleSlot) unlinkFrom(first);
+    }
+
+    byte[] getRule() {
+        return rule;
+    }
+
+    public byte getRuleLength() {
+        return ruleLength;
+    }
+
+    public short getRefCount() {
+        return refCount;
+    }
+}
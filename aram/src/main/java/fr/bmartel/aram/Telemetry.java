@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * Operation counters.
+ * <p>
+ * Counters are incremented in RAM and added to the persistent totals in a single atomic copy when the
+ * applet is deselected (or when a RAM counter is about to saturate), so counting does not cost a
+ * persistent write per command. Values are 2 bytes, saturated at 0x7FFF.
+ *
+ * @author Bertrand Martel
+ */
+public class Telemetry {
+
+    final static byte GET_ALL = 0;
+    final static byte GET_NEXT = 1;
+    final static byte GET_SPECIFIC_HIT = 2;
+    final static byte GET_SPECIFIC_MISS = 3;
+    final static byte STORE = 4;
+    final static byte DELETE = 5;
+    final static byte TRANSACTION = 6;
+    final static byte BYTES_STREAMED = 7;
+
+    /**
+     * number of counters.
+     */
+    final static byte COUNTERS = 8;
+
+    private final static short SIZE_COUNTERS = (short) (COUNTERS * 2);
+
+    private final static short MAX_VALUE = (short) 0x7FFF;
+
+    /**
+     * persistent totals.
+     */
+    private static byte[] totals;
+
+    /**
+     * RAM counters not added to the totals yet.
+     */
+    private static short[] pending;
+
+    /**
+     * RAM buffer used to build the new totals.
+     */
+    private static byte[] scratch;
+
+    /**
+     * allocate the counters on first use.
+     */
+    private static void init() {
+        if (totals != null)
+            return;
+        totals = new byte[SIZE_COUNTERS];
+        pending = JCSystem.makeTransientShortArray(COUNTERS, JCSystem.CLEAR_ON_RESET);
+        scratch = JCSystem.makeTransientByteArray(SIZE_COUNTERS, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Add two counter values, saturating at 0x7FFF.
+     */
+    private static short add(short a, short b) {
+        short sum = (short) (a + b);
+        return sum < 0 ? MAX_VALUE : sum;
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param counter counter index
+     */
+    static void count(byte counter) {
+        count(counter, (short) 1);
+    }
+
+    /**
+     * Add a value to a counter.
+     *
+     * @param counter counter index
+     * @param value   value to add
+     */
+    static void count(byte counter, short value) {
+        init();
+        if ((short) (MAX_VALUE - pending[counter]) < value) {
+            flush();
+        }
+        pending[counter] = add(pending[counter], value);
+    }
+
+    /**
+     * Get the current value of a counter.
+     *
+     * @param counter counter index
+     * @return persistent total plus RAM counter
+     */
+    static short get(byte counter) {
+        init();
+        return add(Util.getShort(totals, (short) (counter * 2)), pending[counter]);
+    }
+
+    /**
+     * Add the RAM counters to the persistent totals in one atomic copy.
+     */
+    static void flush() {
+        init();
+        boolean dirty = false;
+        for (byte i = 0; i < COUNTERS; i++) {
+            if (pending[i] != 0) {
+                dirty = true;
+            }
+            Util.setShort(scratch, (short) (i * 2), get(i));
+        }
+        if (dirty) {
+            Util.arrayCopy(scratch, (short) 0, totals, (short) 0, SIZE_COUNTERS);
+            Util.arrayFillNonAtomic(scratch, (short) 0, SIZE_COUNTERS, (byte) 0);
+            for (byte i = 0; i < COUNTERS; i++) {
+                pending[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Reset all counters.
+     */
+    static void reset() {
+        init();
+        Util.arrayFillNonAtomic(scratch, (short) 0, SIZE_COUNTERS, (byte) 0);
+        Util.arrayCopy(scratch, (short) 0, totals, (short) 0, SIZE_COUNTERS);
+        for (byte i = 0; i < COUNTERS; i++) {
+            pending[i] = 0;
+        }
+    }
+}
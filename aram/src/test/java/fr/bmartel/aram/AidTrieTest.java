@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import fr.bmartel.aram.util.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test AID prefix tree.
+ *
+ * @author Bertrand Martel
+ */
+public class AidTrieTest {
+
+    private final static byte[] HASH = new byte[]{0x03, 0x04, 0x05};
+    private final static byte[] RULE = new byte[]{0x05, 0x06, 0x07, 0x08};
+
+    private final static byte[] AID_RID1 = new byte[]{(byte) 0xA0, 0x00, 0x00, 0x01, 0x51, 0x01};
+    private final static byte[] AID_RID1_BIS = new byte[]{(byte) 0xA0, 0x00, 0x00, 0x01, 0x51, 0x00, 0x02};
+    private final static byte[] AID_RID2 = new byte[]{(byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x01};
+    private final static byte[] RID1 = new byte[]{(byte) 0xA0, 0x00, 0x00, 0x01, 0x51};
+
+    @Before
+    public void initTest() throws NoSuchFieldException, IllegalAccessException {
+        TestUtils.resetStaticFields(RuleEntry.class, "first", "deleted", "size", "tombstones");
+        TestUtils.resetStaticFields(AidGroup.class, "first", "deleted");
+        TestUtils.resetStaticFields(HashSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(RuleSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(AidTrie.class, "label");
+        TestUtils.resetStaticFields(RuleFilter.class, "bits");
+        TestUtils.resetStaticFields(LookupCache.class, "keys");
+    }
+
+    @After
+    public void cleanTest() throws NoSuchFieldException, IllegalAccessException {
+        initTest();
+    }
+
+    private RuleEntry addItem(byte[] aid) {
+        RuleEntry entry = RuleEntry.getInstance();
+        entry.setAid(aid, (short) 0, (byte) aid.length);
+        entry.setHash(HASH, (short) 0, (byte) HASH.length);
+        entry.setRule(RULE, (short) 0, (byte) RULE.length);
+        return entry;
+    }
+
+    private int countGroups(byte[] prefix) {
+        int count = 0;
+        for (AidGroup group = AidTrie.firstGroup(prefix, (short) 0, (byte) prefix.length);
+             group != null;
+             group = AidTrie.nextGroup(group, prefix, (short) 0, (byte) prefix.length)) {
+            assertTrue("group matches prefix", group.startsWith(prefix, (short) 0, (byte) prefix.length));
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void exactLookup() {
+        RuleEntry entry1 = addItem(AID_RID1);
+        RuleEntry entry2 = addItem(AID_RID2);
+        assertSame(entry1.getGroup(), AidTrie.search(AID_RID1, (short) 0, (byte) AID_RID1.length));
+        assertSame(entry2.getGroup(), AidTrie.search(AID_RID2, (short) 0, (byte) AID_RID2.length));
+        assertNull("prefix is not a stored aid", AidTrie.search(RID1, (short) 0, (byte) RID1.length));
+        assertTrue(AidTrie.isComplete());
+    }
+
+    @Test
+    public void prefixWalk() {
+        addItem(AID_RID1);
+        addItem(AID_RID2);
+        addItem(AID_RID1_BIS);
+        addItem(AID_RID1);
+        assertEquals("groups under RID", 2, countGroups(RID1));
+        assertEquals("all groups", 3, countGroups(new byte[]{}));
+        assertEquals("no group", 0, countGroups(new byte[]{0x01}));
+
+        AidGroup group = AidTrie.firstGroup(RID1, (short) 0, (byte) RID1.length);
+        assertTrue("groups sorted by aid", group.startsWith(AID_RID1_BIS, (short) 0, (byte) AID_RID1_BIS.length));
+    }
+
+    @Test
+    public void missingNodes() {
+        assertEquals("empty trie", AID_RID1.length, AidTrie.getMissingNodes(AID_RID1, (short) 0, (byte) AID_RID1.length));
+        addItem(AID_RID1);
+        assertEquals("indexed aid", 0, AidTrie.getMissingNodes(AID_RID1, (short) 0, (byte) AID_RID1.length));
+        assertEquals("shared RID", 2, AidTrie.getMissingNodes(AID_RID1_BIS, (short) 0, (byte) AID_RID1_BIS.length));
+        assertEquals("shared A00000 prefix", AID_RID2.length - 3, AidTrie.getMissingNodes(AID_RID2, (short) 0, (byte) AID_RID2.length));
+    }
+
+    @Test
+    public void removePrunesNodes() {
+        addItem(AID_RID1);
+        addItem(AID_RID2);
+        RuleEntry.deleteAid(AID_RID1, (short) 0, (byte) AID_RID1.length);
+        RuleEntry.purge();
+        assertEquals("pruned prefix", AidTrie.NONE, AidTrie.find(RID1, (short) 0, (byte) RID1.length));
+        assertNotEquals(AidTrie.NONE, AidTrie.find(AID_RID2, (short) 0, (byte) AID_RID2.length));
+        assertEquals("all groups", 1, countGroups(new byte[]{}));
+    }
+
+    @Test
+    public void fullTableFallback() {
+        byte[] aid = new byte[AccessRuleMaster.SIZE_AID];
+        int count = AidTrie.MAX_NODES / AccessRuleMaster.SIZE_AID;
+        for (int i = 0; i < count; i++) {
+            aid[0] = (byte) i;
+            addItem(aid);
+        }
+        assertFalse("last aid not indexed", AidTrie.isComplete());
+        assertEquals("all groups found", count, countGroups(new byte[]{}));
+        for (int i = 0; i < count; i++) {
+            aid[0] = (byte) i;
+            assertNotNull("search with fallback", RuleEntry.searchAid(aid, (short) 0, (byte) aid.length));
+        }
+        aid[0] = (byte) (count - 1);
+        RuleEntry.deleteAid(aid, (short) 0, (byte) aid.length);
+        RuleEntry.purge();
+        assertTrue("all aid indexed", AidTrie.isComplete());
+        assertEquals("groups after deletion", count - 1, countGroups(new byte[]{}));
+    }
+}
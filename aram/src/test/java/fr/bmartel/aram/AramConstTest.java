@@ -58,6 +58,8 @@ public class AramConstTest {
             (byte) 0xC1, (byte) 0x14, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x06, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14,
     };
 
+    public final static byte[] CMD_COMPACT = new byte[]{(byte) 0x80, AccessRuleMaster.INS_STORE_DATA, (byte) 0x90, 0x00, 0x02, (byte) 0xF8, 0x00};
+
     public final static byte[] CMD_STORE_HEADER = new byte[]{(byte) 0x80, AccessRuleMaster.INS_STORE_DATA, (byte) 0x90, 0x00};
 
     public final static byte[] VALID_REF_AR_DO = new byte[]{
@@ -327,6 +329,32 @@ public class AramConstTest {
     public final static byte[] CMD_GET_REFRESH_TAG = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x20};
     public final static byte[] CMD_GET_SPECIFIC = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x50};
 
+    public final static byte[] CMD_GET_AID_PREFIX = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x70};
+
+    public final static byte[] CMD_GET_CACHE_STATS = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x30};
+
+    public final static byte[] CMD_GET_USAGE = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x31};
+
+    public final static byte[] CMD_GET_COUNTERS = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x32};
+
+    public final static byte[] CMD_GET_HEAT = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x33};
+
+    public final static byte[] CMD_SORT_BY_HEAT = new byte[]{(byte) 0x80, AccessRuleMaster.INS_STORE_DATA, (byte) 0x90, 0x00, 0x02, (byte) 0xF9, 0x00};
+
+    public final static byte[] CMD_GET_ACCESS = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x34};
+
+    public final static byte[] CMD_GET_RESOLVED = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x71};
+
+    public final static byte[] CMD_GET_BATCH = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x72};
+
+    public final static byte[] CMD_GET_HASH = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x73};
+
+    public final static byte[] CMD_GET_SUMMARY = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x35};
+
+    public final static byte[] CMD_GET_CHUNK_DIGESTS = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x36};
+
+    public final static byte[] CMD_GET_CHUNK = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xDF, (byte) 0x37};
+
     public final static byte[] CMD_GET_TMP = new byte[]{(byte) 0x80, AccessRuleMaster.INS_GET_DATA, (byte) 0xFF, (byte) 0x41};
 
     public final static byte[] GET_DATA_EMPTY_RESPONSE = new byte[]{(byte) 0xFF, (byte) 0x40, 0x00};
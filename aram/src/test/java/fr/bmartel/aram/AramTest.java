@@ -25,6 +25,7 @@ package fr.bmartel.aram;
 
 import fr.bmartel.aram.util.TestUtils;
 import javacard.framework.ISO7816;
+import javacard.security.Checksum;
 import org.junit.Before;
 import org.junit.Test;
 import pro.javacard.gp.GPDataException;
@@ -33,6 +34,7 @@ import pro.javacard.gp.SEAccessControl;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -181,13 +183,31 @@ public class AramTest extends JavaCardTest {
                 (byte) 0xF0, (byte) refArDo.length
         }, refArDo);
 
-        TestUtils.sendCmdBatch(this,
+        ResponseAPDU response = TestUtils.sendCmdBatch(this,
                 TestUtils.concatByteArray(AramConstTest.CMD_STORE_HEADER,
                         new byte[]{(byte) request.length},
                         request),
                 new byte[]{},
-                0x9000,
-                new byte[]{});
+                0x9000);
+        assertEquals("store capacity response", 4, response.getData().length);
+    }
+
+    /**
+     * Store a REF-AR-DO and get the number of rules that can still be stored.
+     */
+    private int storeDataCapacity(byte[] refArDo, int expectedSw) throws CardException {
+
+        byte[] request = TestUtils.concatByteArray(new byte[]{
+                (byte) 0xF0, (byte) refArDo.length
+        }, refArDo);
+
+        byte[] resp = TestUtils.sendCmdBatch(this,
+                TestUtils.concatByteArray(AramConstTest.CMD_STORE_HEADER,
+                        new byte[]{(byte) request.length},
+                        request),
+                new byte[]{},
+                expectedSw).getData();
+        return resp.length == 4 ? ((resp[0] & 0xFF) << 8) | (resp[1] & 0xFF) : -1;
     }
 
     private void updateRefreshTag() throws CardException {
@@ -376,6 +396,21 @@ public class AramTest extends JavaCardTest {
         sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
     }
 
+    @Test
+    public void deleteByAidHashRuleExact() throws CardException {
+        //rule stored without going through STORE DATA, its AR-DO is not canonical
+        byte[] rule = new byte[]{0x05, 0x06, 0x07, 0x08};
+        RuleEntry entry = RuleEntry.getInstance();
+        entry.setAid(AramConstTest.AID, (short) 0, (byte) AramConstTest.AID.length);
+        entry.setHash(AramConstTest.HASH, (short) 0, (byte) AramConstTest.HASH.length);
+        entry.setRule(rule, (short) 0, (byte) rule.length);
+
+        byte[] arDo = TestUtils.concatByteArray(new byte[]{(byte) 0xE3, (byte) rule.length}, rule);
+        deleteData(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.VALID_REF_DO.length + arDo.length)},
+                AramConstTest.VALID_REF_DO, arDo));
+        sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+    }
+
     @Test
     public void refreshTag() throws CardException {
         byte[] req1 = sendGetRefreshTag(new byte[]{}, 0x9000).getData();
@@ -389,10 +424,588 @@ public class AramTest extends JavaCardTest {
         assertNotEquals(req3, req2);
     }
 
+    private void getAidPrefix(byte[] prefix, byte[] expectedData) throws CardException {
+        byte[] request = TestUtils.concatByteArray(new byte[]{(byte) 0x4F, (byte) prefix.length}, prefix);
+
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_AID_PREFIX, request, 0x9000,
+                TestUtils.concatByteArray(expectedData.length < 0x80 ?
+                        new byte[]{(byte) 0xFF, (byte) 0x70, (byte) expectedData.length} :
+                        new byte[]{(byte) 0xFF, (byte) 0x70, (byte) 0x81, (byte) expectedData.length}, expectedData));
+    }
+
+    @Test
+    public void getAidPrefix() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO_CLONE);
+        getAidPrefix(new byte[]{(byte) 0xD2, (byte) 0x76},
+                TestUtils.concatByteArray(AramConstTest.VALID_REF_AR_DO_CLONE, AramConstTest.VALID_REF_AR_DO));
+        getAidPrefix(new byte[]{(byte) 0xD3},
+                AramConstTest.VALID_REF_AR_DO1);
+        getAidPrefix(new byte[]{},
+                TestUtils.concatByteArray(AramConstTest.VALID_REF_AR_DO_CLONE, AramConstTest.VALID_REF_AR_DO, AramConstTest.VALID_REF_AR_DO1));
+        getAidPrefix(new byte[]{(byte) 0xD4}, new byte[]{});
+    }
+
+    @Test
+    public void getAidPrefixWrongLength() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        byte[][] requests = new byte[][]{
+                new byte[]{0x4F, 0x05, (byte) 0xD2, 0x76},
+                new byte[]{0x4F, 0x01, (byte) 0xD2, 0x76},
+                TestUtils.concatByteArray(new byte[]{0x4F, 0x11}, new byte[0x11]),
+                new byte[]{0x4F, (byte) 0x81, 0x02, (byte) 0xD2, 0x76}
+        };
+        for (byte[] request : requests) {
+            TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_AID_PREFIX, request, ISO7816.SW_WRONG_DATA, new byte[]{});
+            TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_ALL, request, ISO7816.SW_WRONG_DATA, new byte[]{});
+        }
+    }
+
+    @Test
+    public void getAidPrefixNext() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        storeData(AramConstTest.VALID_REF_AR_DO2);
+        storeData(AramConstTest.VALID_REF_AR_DO3);
+        storeData(AramConstTest.VALID_REF_AR_DO4);
+        storeData(AramConstTest.VALID_REF_AR_DO5);
+
+        byte[] expectedData = TestUtils.concatByteArray(AramConstTest.VALID_REF_AR_DO, AramConstTest.VALID_REF_AR_DO1, AramConstTest.VALID_REF_AR_DO2, AramConstTest.VALID_REF_AR_DO3, AramConstTest.VALID_REF_AR_DO4, AramConstTest.VALID_REF_AR_DO5);
+        byte[] expected = TestUtils.checkList(0, expectedData);
+        expected[1] = (byte) 0x70;
+
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_AID_PREFIX, new byte[]{(byte) 0x4F, 0x00}, 0x9000, expected);
+        sendGetNext(new byte[]{}, 0x9000, TestUtils.checkList(1, expectedData));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+    }
+
+    private int[] getCacheStats() throws CardException {
+        byte[] resp = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CACHE_STATS, new byte[]{}, 0x9000).getData();
+        assertEquals(7, resp.length);
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0x30, 0x04}, Arrays.copyOfRange(resp, 0, 3));
+        return new int[]{((resp[3] & 0xFF) << 8) | (resp[4] & 0xFF), ((resp[5] & 0xFF) << 8) | (resp[6] & 0xFF)};
+    }
+
+    @Test
+    public void getSpecificCached() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        byte[] expected = TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO);
+
+        int[] before = getCacheStats();
+        getSpecific(AramConstTest.REF_DO, expected);
+        getSpecific(AramConstTest.REF_DO, expected);
+        int[] after = getCacheStats();
+        assertEquals("hit", before[0] + 1, after[0]);
+        assertEquals("miss", before[1] + 1, after[1]);
+
+        //cache is invalidated on store
+        storeData(AramConstTest.VALID_REF_AR_DO_CLONE);
+        getSpecific(AramConstTest.REF_DO, expected);
+        assertEquals("miss after store", after[1] + 1, getCacheStats()[1]);
+    }
+
+    @Test
+    public void compactStore() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_COMPACT, new byte[]{}, 0x9000, new byte[]{});
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, AramConstTest.VALID_REF_AR_DO1));
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO));
+    }
+
+    @Test
+    public void storeWriteBudget() throws CardException {
+        AramUtils.resetWriteCount();
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        assertTrue("new rule written at most once", AramUtils.getWriteCount() <= AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH + AccessRuleMaster.SIZE_RULE);
+        AramUtils.resetWriteCount();
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        assertEquals("identical rule not written", 0, AramUtils.getWriteCount());
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        assertEquals("delete writes no value", 0, AramUtils.getWriteCount());
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        assertEquals("recycled values kept", 0, AramUtils.getWriteCount());
+    }
+
+    @Test
+    public void storeCapacity() throws CardException {
+        int remaining = storeDataCapacity(AramConstTest.VALID_REF_AR_DO, 0x9000);
+        assertEquals("rule count", AccessRuleMaster.MAX_RULES - 1, remaining);
+        assertEquals("merged into the same rule", remaining, storeDataCapacity(AramConstTest.VALID_REF_AR_DO, 0x9000));
+        for (int i = 0; remaining > 0; i++) {
+            //same aid, distinct hashes
+            byte[] refArDo = AramConstTest.VALID_REF_AR_DO1.clone();
+            refArDo[42] = (byte) (i >> 8);
+            refArDo[43] = (byte) i;
+            int next = storeDataCapacity(refArDo, 0x9000);
+            assertEquals(remaining - 1, next);
+            remaining = next;
+        }
+        assertEquals("rejected when full", -1, storeDataCapacity(AramConstTest.VALID_REF_AR_DO2, ISO7816.SW_FILE_FULL));
+        assertEquals("merge accepted when full", 0, storeDataCapacity(AramConstTest.VALID_REF_AR_DO, 0x9000));
+        getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO));
+
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        assertEquals("free after deletion", 0, storeDataCapacity(AramConstTest.VALID_REF_AR_DO2, 0x9000));
+        deleteData(Arrays.copyOfRange(AramConstTest.VALID_REF_AR_DO1, 4, 22));
+        assertEquals("aid rules deleted at once", AccessRuleMaster.MAX_RULES - 2, storeDataCapacity(AramConstTest.VALID_REF_AR_DO, 0x9000));
+    }
+
+    private int[] getUsage() throws CardException {
+        byte[] resp = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_USAGE, new byte[]{}, 0x9000).getData();
+        assertEquals(19, resp.length);
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0x31, 0x10}, Arrays.copyOfRange(resp, 0, 3));
+        int[] values = new int[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ((resp[3 + 2 * i] & 0xFF) << 8) | (resp[4 + 2 * i] & 0xFF);
+        }
+        return values;
+    }
+
+    @Test
+    public void usageReport() throws CardException {
+        int[] usage = getUsage();
+        assertEquals("no rule", 0, usage[0]);
+        assertEquals("empty GET ALL", AramConstTest.GET_DATA_EMPTY_RESPONSE.length, usage[3]);
+        assertEquals("largest AR-DO", AccessRuleMaster.MAX_STORE_AR_DO, usage[7]);
+
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        usage = getUsage();
+        assertEquals("active rules", 2, usage[0]);
+        assertEquals("GET ALL length", 3 + AramConstTest.VALID_REF_AR_DO.length + AramConstTest.VALID_REF_AR_DO1.length, usage[3]);
+
+        int recycled = usage[1];
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        deleteData(AramConstTest.VALID_REF_AR_DO1);
+        usage = getUsage();
+        assertEquals("no rule after deletion", 0, usage[0]);
+        assertEquals("recycled entries", recycled + 2, usage[1]);
+    }
+
+    private int[] getCounters(byte[] data) throws CardException {
+        byte[] resp = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_COUNTERS, data, 0x9000).getData();
+        assertEquals(19, resp.length);
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0x32, 0x10}, Arrays.copyOfRange(resp, 0, 3));
+        int[] values = new int[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ((resp[3 + 2 * i] & 0xFF) << 8) | (resp[4 + 2 * i] & 0xFF);
+        }
+        return values;
+    }
+
+    @Test
+    public void operationCounters() throws CardException {
+        getCounters(new byte[]{0x01});
+        assertArrayEquals("counters reset", new int[8], getCounters(new byte[]{}));
+
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO));
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        TestUtils.sendCmdBatch(this,
+                TestUtils.concatByteArray(AramConstTest.CMD_GET_SPECIFIC, new byte[]{(byte) (AramConstTest.REF_DO.length + 1), (byte) AramConstTest.REF_DO.length}, AramConstTest.REF_DO),
+                new byte[]{}, 0x6A88);
+        sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+
+        int[] counters = getCounters(new byte[]{0x01});
+        assertEquals("get all", 1, counters[0]);
+        assertEquals("get next", 1, counters[1]);
+        assertEquals("get specific hit", 1, counters[2]);
+        assertEquals("get specific miss", 1, counters[3]);
+        assertEquals("store", 1, counters[4]);
+        assertEquals("delete", 1, counters[5]);
+        assertEquals("transactions", 2, counters[6]);
+        assertEquals("bytes streamed", AramConstTest.GET_DATA_EMPTY_RESPONSE.length + 3 + AramConstTest.VALID_REF_AR_DO.length, counters[7]);
+        assertArrayEquals("counters reset after read", new int[8], getCounters(new byte[]{}));
+    }
+
+    @Test
+    public void countersWithLe() throws CardException {
+        ResponseAPDU response = this.transmitCommand(new CommandAPDU(TestUtils.concatByteArray(AramConstTest.CMD_GET_COUNTERS, new byte[]{0x10})));
+        assertEquals(0x9000, response.getSW());
+        assertEquals(19, response.getData().length);
+    }
+
+    @Test
+    public void getAllWithLe() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        ResponseAPDU response = this.transmitCommand(new CommandAPDU(TestUtils.concatByteArray(AramConstTest.CMD_GET_ALL, new byte[]{0x10})));
+        assertEquals(0x9000, response.getSW());
+        assertArrayEquals(TestUtils.checkList(0, AramConstTest.VALID_REF_AR_DO), response.getData());
+    }
+
+    @Test
+    public void chunkWithLe() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        byte[] getAll = TestUtils.checkList(0, AramConstTest.VALID_REF_AR_DO);
+        ResponseAPDU response = this.transmitCommand(new CommandAPDU(TestUtils.concatByteArray(AramConstTest.CMD_GET_CHUNK, new byte[]{0x10})));
+        assertEquals("first chunk", 0x9000, response.getSW());
+        assertArrayEquals(getAll, response.getData());
+        response = this.transmitCommand(new CommandAPDU(TestUtils.concatByteArray(AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{0x10})));
+        assertEquals("digests from first chunk", 0x9000, response.getSW());
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0x36}, Arrays.copyOfRange(response.getData(), 0, 2));
+    }
+
+    private byte[] heatItem(byte[] refArDo, int heat) {
+        return TestUtils.concatByteArray(Arrays.copyOfRange(refArDo, 2, 4 + refArDo[3]), new byte[]{(byte) 0xC2, 0x01, (byte) heat});
+    }
+
+    @Test
+    public void heatListing() throws CardException {
+        byte[] expected = TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getSpecific(AramConstTest.REF_DO, expected);
+        getSpecific(AramConstTest.REF_DO, expected);
+
+        byte[] list = TestUtils.concatByteArray(heatItem(AramConstTest.VALID_REF_AR_DO, 2), heatItem(AramConstTest.VALID_REF_AR_DO1, 0));
+        byte[] response = TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x33, (byte) list.length}, list);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_HEAT, new byte[]{}, 0x9000, response);
+
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_SORT_BY_HEAT, new byte[]{}, 0x9000, new byte[]{});
+        getSpecific(AramConstTest.REF_DO, expected);
+        list = TestUtils.concatByteArray(heatItem(AramConstTest.VALID_REF_AR_DO, 2), heatItem(AramConstTest.VALID_REF_AR_DO1, 0));
+        response = TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x33, (byte) list.length}, list);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_HEAT, new byte[]{}, 0x9000, response);
+    }
+
+    private void getAccess(byte[] header, int expected) throws CardException {
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_ACCESS, TestUtils.concatByteArray(AramConstTest.REF_DO, header), 0x9000,
+                new byte[]{(byte) 0xDF, (byte) 0x34, 0x01, (byte) expected});
+    }
+
+    @Test
+    public void accessDecision() throws CardException {
+        byte[] header = new byte[]{0x00, (byte) 0xA4, 0x04, 0x00};
+        getAccess(header, 0);
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getAccess(header, 1);
+    }
+
+    @Test
+    public void canonicalStore() throws CardException {
+        byte[] arDo = new byte[]{(byte) 0xE3, 0x15, (byte) 0xD1, 0x01, 0x01, (byte) 0xD0, 0x10,
+                (byte) 0x80, (byte) 0xCA, 0x12, 0x34, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+        byte[] canonical = new byte[]{(byte) 0xE3, 0x0D, (byte) 0xD0, 0x08,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00, (byte) 0xD1, 0x01, 0x01};
+        storeData(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + arDo.length)}, AramConstTest.REF_DO, arDo));
+        byte[] refArDo = TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + canonical.length)}, AramConstTest.REF_DO, canonical);
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo));
+
+        arDo = new byte[]{(byte) 0xE3, 0x03, (byte) 0xD0, 0x01, 0x02};
+        storeDataCapacity(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + arDo.length)}, AramConstTest.REF_DO, arDo), ISO7816.SW_DATA_INVALID);
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo));
+    }
+
+    @Test
+    public void storeLongArDo() throws CardException {
+        //16 filters : AR-DO of 130 bytes with one byte lengths
+        byte[] filters = new byte[16 * 8];
+        for (int i = 0; i < 16; i++) {
+            filters[i * 8] = (byte) 0x80;
+            filters[i * 8 + 1] = (byte) i;
+        }
+        byte[] arDo = TestUtils.concatByteArray(new byte[]{(byte) 0xE3, (byte) (filters.length + 2), (byte) 0xD0, (byte) filters.length}, filters);
+        storeDataCapacity(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + arDo.length)}, AramConstTest.REF_DO, arDo), ISO7816.SW_WRONG_DATA);
+
+        //long form length
+        arDo = new byte[]{(byte) 0xE3, (byte) 0x81, 0x03, (byte) 0xD0, 0x01, 0x01};
+        storeDataCapacity(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + arDo.length)}, AramConstTest.REF_DO, arDo), ISO7816.SW_WRONG_DATA);
+        sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+    }
+
+    private void getResolved(byte[] refArDo) throws CardException {
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_RESOLVED, AramConstTest.REF_DO, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x71, (byte) refArDo.length}, refArDo));
+    }
+
+    @Test
+    public void getResolvedRule() throws CardException {
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_RESOLVED, AramConstTest.REF_DO, 0x6A88, new byte[]{});
+
+        byte[] global = new byte[]{(byte) 0xE2, 0x0B, (byte) 0xE1, 0x04, 0x4F, 0x00, (byte) 0xC1, 0x00,
+                (byte) 0xE3, 0x03, (byte) 0xD0, 0x01, 0x00};
+        storeData(global);
+        getResolved(global);
+
+        byte[] aidOnly = TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.AID_REF_DO.length + 9),
+                (byte) 0xE1, (byte) (AramConstTest.AID_REF_DO.length + 2)}, AramConstTest.AID_REF_DO,
+                new byte[]{(byte) 0xC1, 0x00, (byte) 0xE3, 0x03, (byte) 0xD1, 0x01, 0x01});
+        storeData(aidOnly);
+        getResolved(aidOnly);
+
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getResolved(AramConstTest.VALID_REF_AR_DO);
+    }
+
+    private byte[] refArDo(byte[] arDo) {
+        int len = AramConstTest.REF_DO.length + 2 + arDo.length;
+        byte[] header = len > 0x7F ? new byte[]{(byte) 0xE2, (byte) 0x81, (byte) len} : new byte[]{(byte) 0xE2, (byte) len};
+        return TestUtils.concatByteArray(header, AramConstTest.REF_DO, new byte[]{(byte) 0xE3, (byte) arDo.length}, arDo);
+    }
+
+    @Test
+    public void mergeAndPartialDelete() throws CardException {
+        byte[] selectFilter = new byte[]{(byte) 0xD0, 0x08, (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        byte[] getDataFilter = new byte[]{(byte) 0xD0, 0x08, (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+        byte[] nfc = new byte[]{(byte) 0xD1, 0x01, 0x01};
+
+        storeData(refArDo(selectFilter));
+        storeData(refArDo(TestUtils.concatByteArray(getDataFilter, nfc)));
+        byte[] merged = refArDo(new byte[]{(byte) 0xD0, 0x10,
+                (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                (byte) 0xD1, 0x01, 0x01});
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, merged));
+
+        deleteData(refArDo(selectFilter));
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo(TestUtils.concatByteArray(getDataFilter, nfc))));
+
+        byte[] request = TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) refArDo(selectFilter).length}, refArDo(selectFilter));
+        TestUtils.sendCmdBatch(this, TestUtils.concatByteArray(AramConstTest.CMD_STORE_HEADER, new byte[]{(byte) request.length}, request),
+                new byte[]{}, 0x6A88, new byte[]{});
+
+        deleteData(refArDo(TestUtils.concatByteArray(getDataFilter, nfc)));
+        sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+    }
+
+    /**
+     * APDU-AR-DO with the filters first to last - 1 (header 80 i 00 00, mask FF FF 00 00).
+     */
+    private static byte[] filters(int first, int last) {
+        byte[] apduArDo = new byte[2 + (last - first) * 8];
+        apduArDo[0] = (byte) 0xD0;
+        apduArDo[1] = (byte) (apduArDo.length - 2);
+        for (int i = first; i < last; i++) {
+            int ofs = 2 + (i - first) * 8;
+            apduArDo[ofs] = (byte) 0x80;
+            apduArDo[ofs + 1] = (byte) i;
+            apduArDo[ofs + 4] = (byte) 0xFF;
+            apduArDo[ofs + 5] = (byte) 0xFF;
+        }
+        return apduArDo;
+    }
+
+    @Test
+    public void mergeLongArDo() throws CardException {
+        storeData(refArDo(filters(0, 9)));
+        storeData(refArDo(filters(9, 15)));
+        //15 filters : 122 bytes
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo(filters(0, 15))));
+
+        //16 filters : 130 bytes
+        storeDataCapacity(refArDo(filters(15, 16)), ISO7816.SW_FILE_FULL);
+        storeDataCapacity(refArDo(filters(8, 17)), ISO7816.SW_FILE_FULL);
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo(filters(0, 15))));
+
+        storeData(refArDo(filters(10, 15)));
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, refArDo(filters(0, 15))));
+
+        //too long to be deleted with its AR-DO, delete by REF-DO
+        deleteData(AramConstTest.REF_DO);
+        sendGetAll(new byte[]{}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+    }
+
+    @Test
+    public void getSpecificLongArDo() throws CardException {
+        storeData(refArDo(filters(0, 9)));
+        storeData(refArDo(filters(9, 15)));
+        byte[] refArDo = refArDo(filters(0, 15));
+        assertEquals("REF-AR-DO length in 81 form", (byte) 0x81, refArDo[1]);
+
+        getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) 0x81, (byte) refArDo.length}, refArDo));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+
+        //two long REF-AR-DO span two chunks
+        byte[] data = TestUtils.concatByteArray(refArDo, refArDo);
+        byte[] response = TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x72, (byte) 0x82, (byte) (data.length >> 8), (byte) data.length}, data);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_BATCH, TestUtils.concatByteArray(AramConstTest.REF_DO, AramConstTest.REF_DO), 0x9000,
+                Arrays.copyOfRange(response, 0, AccessRuleMaster.APDU_CHUNK));
+        sendGetNext(new byte[]{}, 0x9000, Arrays.copyOfRange(response, AccessRuleMaster.APDU_CHUNK, response.length));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+
+        deleteData(AramConstTest.REF_DO);
+    }
+
     @Test
     public void getSpecificArDo() throws CardException {
         storeData(AramConstTest.VALID_REF_AR_DO);
         sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, AramConstTest.VALID_REF_AR_DO));
         getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getSpecificNext() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        getSpecific(AramConstTest.REF_DO, TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x50, (byte) AramConstTest.VALID_REF_AR_DO.length}, AramConstTest.VALID_REF_AR_DO));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+    }
+
+    @Test
+    public void getBatch() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO2);
+        byte[] missing = Arrays.copyOfRange(AramConstTest.VALID_REF_AR_DO1, 2, 44);
+        byte[] refDo2 = Arrays.copyOfRange(AramConstTest.VALID_REF_AR_DO2, 2, 44);
+
+        byte[] data = TestUtils.concatByteArray(AramConstTest.VALID_REF_AR_DO, new byte[]{(byte) 0xE2, 0x00}, AramConstTest.VALID_REF_AR_DO2);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_BATCH, TestUtils.concatByteArray(AramConstTest.REF_DO, missing, refDo2), 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x72, (byte) data.length}, data));
+
+        //6 REF-AR-DO do not fit in one response
+        byte[] keys = new byte[0];
+        data = new byte[0];
+        for (int i = 0; i < 6; i++) {
+            keys = TestUtils.concatByteArray(keys, AramConstTest.REF_DO);
+            data = TestUtils.concatByteArray(data, AramConstTest.VALID_REF_AR_DO);
+        }
+        byte[] response = TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x72, (byte) 0x82, (byte) (data.length >> 8), (byte) data.length}, data);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_BATCH, keys, 0x9000, Arrays.copyOfRange(response, 0, AccessRuleMaster.APDU_CHUNK));
+        sendGetNext(new byte[]{}, 0x9000, Arrays.copyOfRange(response, AccessRuleMaster.APDU_CHUNK, response.length));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+    }
+
+    @Test
+    public void getByHash() throws CardException {
+        byte[] otherAid = AramConstTest.VALID_REF_AR_DO.clone();
+        otherAid[6] = (byte) 0xD5;
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        storeData(otherAid);
+
+        byte[] data = TestUtils.concatByteArray(otherAid, AramConstTest.VALID_REF_AR_DO);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_HASH, AramConstTest.VALID_HASH_REF_DO, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x73, (byte) data.length}, data));
+
+        deleteData(otherAid);
+        deleteData(AramConstTest.VALID_REF_AR_DO);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_HASH, AramConstTest.VALID_HASH_REF_DO, 0x9000,
+                new byte[]{(byte) 0xFF, (byte) 0x73, 0x00});
+    }
+
+    @Test
+    public void getAllFiltered() throws CardException {
+        byte[] rid = new byte[]{0x4F, 0x05, (byte) 0xD2, 0x76, 0x00, 0x01, 0x18};
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+        byte[] data = new byte[0];
+        for (int i = 0; i < 6; i++) {
+            byte[] refArDo = AramConstTest.VALID_REF_AR_DO.clone();
+            refArDo[43] = (byte) i;
+            storeData(refArDo);
+            data = TestUtils.concatByteArray(refArDo, data);
+        }
+        storeData(AramConstTest.VALID_REF_AR_DO2);
+
+        byte[] response = TestUtils.concatByteArray(new byte[]{(byte) 0xFF, (byte) 0x40, (byte) 0x82, (byte) (data.length >> 8), (byte) data.length}, data);
+        sendGetAll(rid, 0x9000, Arrays.copyOfRange(response, 0, AccessRuleMaster.APDU_CHUNK));
+        sendGetNext(new byte[]{}, 0x9000, Arrays.copyOfRange(response, AccessRuleMaster.APDU_CHUNK, response.length));
+        sendGetNext(new byte[]{}, 0x6A88, new byte[]{});
+
+        sendGetAll(new byte[]{0x4F, 0x02, (byte) 0xA0, 0x00}, 0x9000, AramConstTest.GET_DATA_EMPTY_RESPONSE);
+    }
+
+    @Test
+    public void summary() throws CardException {
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        storeData(AramConstTest.VALID_REF_AR_DO1);
+
+        byte[] resp = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_SUMMARY, new byte[]{}, 0x9000).getData();
+        assertEquals(17, resp.length);
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0x35, 0x0E, 0x00, 0x02}, Arrays.copyOfRange(resp, 0, 5));
+        int getAllLength = ((resp[5] & 0xFF) << 8) | (resp[6] & 0xFF);
+        assertEquals("GET ALL length", 3 + AramConstTest.VALID_REF_AR_DO.length + AramConstTest.VALID_REF_AR_DO1.length, getAllLength);
+        byte[] refreshTag = sendGetRefreshTag(new byte[]{}, 0x9000).getData();
+        assertArrayEquals("refresh tag", Arrays.copyOfRange(refreshTag, 3, 11), Arrays.copyOfRange(resp, 7, 15));
+
+        int version = getStoreVersion();
+        storeData(AramConstTest.VALID_REF_AR_DO);
+        assertEquals("merge", version + 1, getStoreVersion());
+        deleteData(AramConstTest.VALID_REF_AR_DO1);
+        assertEquals("delete", version + 2, getStoreVersion());
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_SORT_BY_HEAT, new byte[]{}, 0x9000, new byte[]{});
+        assertEquals("reorder", version + 3, getStoreVersion());
+        sendGetAll(new byte[]{}, 0x9000, TestUtils.checkList(0, AramConstTest.VALID_REF_AR_DO));
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_COMPACT, new byte[]{}, 0x9000, new byte[]{});
+        assertEquals("unchanged by read & compaction", version + 3, getStoreVersion());
+    }
+
+    @Test
+    public void storeVersionOnError() throws CardException {
+        storeData(refArDo(filters(0, 9)));
+        storeData(refArDo(filters(9, 15)));
+        int version = getStoreVersion();
+
+        byte[] arDo = new byte[]{(byte) 0xE3, (byte) 0x81, 0x03, (byte) 0xD0, 0x01, 0x01};
+        storeDataCapacity(TestUtils.concatByteArray(new byte[]{(byte) 0xE2, (byte) (AramConstTest.REF_DO.length + arDo.length)}, AramConstTest.REF_DO, arDo), ISO7816.SW_WRONG_DATA);
+        assertEquals("invalid store", version, getStoreVersion());
+        storeDataCapacity(refArDo(filters(15, 16)), ISO7816.SW_FILE_FULL);
+        assertEquals("merge too long", version, getStoreVersion());
+        byte[] request = TestUtils.concatByteArray(new byte[]{(byte) 0xF1, (byte) AramConstTest.VALID_REF_AR_DO1.length}, AramConstTest.VALID_REF_AR_DO1);
+        TestUtils.sendCmdBatch(this, TestUtils.concatByteArray(AramConstTest.CMD_STORE_HEADER, new byte[]{(byte) request.length}, request),
+                new byte[]{}, 0x6A88, new byte[]{});
+        assertEquals("delete not found", version, getStoreVersion());
+
+        deleteData(AramConstTest.REF_DO);
+        assertEquals("delete", version + 1, getStoreVersion());
+    }
+
+    private int getStoreVersion() throws CardException {
+        byte[] resp = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_SUMMARY, new byte[]{}, 0x9000).getData();
+        return ((resp[15] & 0xFF) << 8) | (resp[16] & 0xFF);
+    }
+
+    /**
+     * Digest of a chunk computed with the checksum algorithm of the card.
+     */
+    private byte[] chunkDigest(byte[] chunk) {
+        byte[] digest = new byte[4];
+        Checksum.getInstance(Checksum.ALG_ISO3309_CRC32, false).doFinal(chunk, (short) 0, (short) chunk.length, digest, (short) 0);
+        return digest;
+    }
+
+    @Test
+    public void chunkDigests() throws CardException {
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x06, 0x00, 0x01}, chunkDigest(AramConstTest.GET_DATA_EMPTY_RESPONSE)));
+
+        for (int i = 0; i < 6; i++) {
+            byte[] refArDo = AramConstTest.VALID_REF_AR_DO.clone();
+            refArDo[43] = (byte) i;
+            storeData(refArDo);
+        }
+        byte[] chunk0 = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_ALL, new byte[]{}, 0x9000).getData();
+        byte[] chunk1 = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_NEXT, new byte[]{}, 0x9000).getData();
+        assertEquals(AccessRuleMaster.APDU_CHUNK, chunk0.length);
+
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x0A, 0x00, 0x02}, chunkDigest(chunk0), chunkDigest(chunk1)));
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{0x01}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x06, 0x00, 0x02}, chunkDigest(chunk1)));
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{0x02}, 0x6A88, new byte[]{});
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{(byte) 0xFF}, 0x6A88, new byte[]{});
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{0x01}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x06, 0x00, 0x02}, chunkDigest(chunk1)));
+
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK, new byte[]{0x01}, 0x9000, chunk1);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK, new byte[]{0x00}, 0x9000, chunk0);
+        sendGetNext(new byte[]{}, 0x9000, chunk1);
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK, new byte[]{0x02}, 0x6A88, new byte[]{});
+
+        //digests follow the changes of the store
+        byte[] refArDo = AramConstTest.VALID_REF_AR_DO.clone();
+        refArDo[43] = 0x06;
+        storeData(refArDo);
+        chunk0 = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_ALL, new byte[]{}, 0x9000).getData();
+        chunk1 = TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_NEXT, new byte[]{}, 0x9000).getData();
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x0A, 0x00, 0x02}, chunkDigest(chunk0), chunkDigest(chunk1)));
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_SORT_BY_HEAT, new byte[]{}, 0x9000, new byte[]{});
+        TestUtils.sendCmdBatch(this, AramConstTest.CMD_GET_CHUNK_DIGESTS, new byte[]{}, 0x9000,
+                TestUtils.concatByteArray(new byte[]{(byte) 0xDF, (byte) 0x36, 0x0A, 0x00, 0x02}, chunkDigest(chunk0), chunkDigest(chunk1)));
+    }
+}
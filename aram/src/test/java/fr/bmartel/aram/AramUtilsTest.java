@@ -27,11 +27,15 @@ import fr.bmartel.aram.util.TestUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
 import javax.smartcardio.CardException;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * Test AramUtils functions (core functions used to generate ber TLV data object and streaming data through for next data cmd).
@@ -239,4 +243,104 @@ public class AramUtilsTest {
     public void refArDoOverflow3Test() throws CardException {
         overflowTest((short) (AccessRuleMaster.APDU_CHUNK - 10), ObjectType.REF_AR_DO);
     }
+
+    private byte[] canonicalize(byte[] arDo) {
+        byte[] buf = TestUtils.concatByteArray(new byte[]{0x55}, arDo);
+        short len = AramUtils.canonicalizeArDo(buf, (short) 1, (short) arDo.length);
+        return Arrays.copyOfRange(buf, 1, 1 + len);
+    }
+
+    @Test
+    public void canonicalArDoTest() {
+        byte[] canonical = new byte[]{(byte) 0xD0, 0x01, 0x01};
+        assertArrayEquals(canonical, canonicalize(canonical));
+
+        assertArrayEquals(new byte[]{(byte) 0xD0, 0x01, 0x00, (byte) 0xD1, 0x01, 0x01},
+                canonicalize(new byte[]{(byte) 0xD1, 0x01, 0x01, (byte) 0xD0, (byte) 0x81, 0x01, 0x00}));
+
+        byte[] filters = new byte[]{(byte) 0xD0, 0x18,
+                (byte) 0x80, (byte) 0xCA, 0x12, 0x34, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                (byte) 0xD1, 0x01, 0x00};
+        assertArrayEquals(new byte[]{(byte) 0xD0, 0x10,
+                        (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                        (byte) 0xD1, 0x01, 0x00},
+                canonicalize(filters));
+
+        assertArrayEquals("empty AR-DO", new byte[]{}, canonicalize(new byte[]{}));
+        assertArrayEquals("other sub data objects kept after APDU-AR-DO & NFC-AR-DO",
+                new byte[]{(byte) 0xD0, 0x01, 0x00, (byte) 0xD1, 0x01, 0x01, (byte) 0xDB, 0x01, 0x02, (byte) 0xE4, 0x00},
+                canonicalize(new byte[]{(byte) 0xDB, 0x01, 0x02, (byte) 0xD1, 0x01, 0x01, (byte) 0xE4, 0x00, (byte) 0xD0, 0x01, 0x00}));
+        assertArrayEquals("other sub data objects verbatim",
+                new byte[]{(byte) 0xD0, 0x01, 0x01, (byte) 0xDB, (byte) 0x81, 0x02, (byte) 0xAA, (byte) 0xBB},
+                canonicalize(new byte[]{(byte) 0xDB, (byte) 0x81, 0x02, (byte) 0xAA, (byte) 0xBB, (byte) 0xD0, (byte) 0x81, 0x01, 0x01}));
+        byte[] perm = new byte[]{(byte) 0xDB, 0x08, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08};
+        assertArrayEquals("PERM-AR-DO only", perm, canonicalize(perm));
+    }
+
+    @Test
+    public void invalidArDoTest() {
+        byte[][] invalid = new byte[][]{
+                new byte[]{(byte) 0xD0, 0x01, 0x02},
+                new byte[]{(byte) 0xD0, 0x03, 0x00, 0x00, 0x00},
+                new byte[]{(byte) 0xD0, 0x01, 0x01, (byte) 0xD0, 0x01, 0x01},
+                new byte[]{(byte) 0xD1, 0x02, 0x01, 0x01},
+                new byte[]{(byte) 0xD0, 0x05, 0x01},
+                new byte[]{(byte) 0xDB, 0x05, 0x01},
+                new byte[]{(byte) 0xD0, 0x01, 0x01, (byte) 0xDB},
+                new byte[]{(byte) 0xDB, (byte) 0x82, 0x00, 0x01, 0x01},
+                new byte[]{(byte) 0xD1, 0x01, 0x01, (byte) 0xDB, 0x00, (byte) 0xD1, 0x01, 0x00},
+        };
+        for (byte[] arDo : invalid) {
+            try {
+                canonicalize(arDo);
+                fail("invalid AR-DO accepted : " + Arrays.toString(arDo));
+            } catch (ISOException e) {
+                assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+            }
+        }
+    }
+
+    private byte[] merge(byte[] a, byte[] b, boolean remove) {
+        byte[] out = new byte[AccessRuleMaster.SIZE_RULE];
+        short len = AramUtils.mergeArDo(a, (short) 0, (short) a.length, b, (short) 0, (short) b.length, out, remove);
+        return Arrays.copyOf(out, len);
+    }
+
+    @Test
+    public void mergeArDoTest() {
+        byte[] selectFilter = new byte[]{(byte) 0xD0, 0x08, (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        byte[] getDataFilter = new byte[]{(byte) 0xD0, 0x08, (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+        byte[] both = new byte[]{(byte) 0xD0, 0x10,
+                (byte) 0x80, (byte) 0xA4, 0x04, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00};
+        byte[] nfc = new byte[]{(byte) 0xD1, 0x01, 0x01};
+
+        assertArrayEquals("filters added", both, merge(getDataFilter, selectFilter, false));
+        assertArrayEquals("filters deduplicated", both, merge(both, getDataFilter, false));
+        assertArrayEquals("nfc added", TestUtils.concatByteArray(both, nfc), merge(both, nfc, false));
+        assertArrayEquals("generic replaces", new byte[]{(byte) 0xD0, 0x01, 0x01, (byte) 0xD1, 0x01, 0x00},
+                merge(TestUtils.concatByteArray(both, nfc), new byte[]{(byte) 0xD0, 0x01, 0x01, (byte) 0xD1, 0x01, 0x00}, false));
+
+        assertArrayEquals("filter removed", getDataFilter, merge(TestUtils.concatByteArray(both, nfc), TestUtils.concatByteArray(selectFilter, nfc), true));
+        assertArrayEquals("missing filter ignored", selectFilter, merge(selectFilter, getDataFilter, true));
+        assertArrayEquals("nfc kept", nfc, merge(TestUtils.concatByteArray(selectFilter, nfc), selectFilter, true));
+        assertArrayEquals("nothing left", new byte[]{}, merge(nfc, nfc, true));
+        assertArrayEquals("different nfc kept", nfc, merge(nfc, new byte[]{(byte) 0xD1, 0x01, 0x00}, true));
+
+        byte[] perm = new byte[]{(byte) 0xDB, 0x02, 0x01, 0x02};
+        byte[] perm1 = new byte[]{(byte) 0xDB, 0x02, 0x03, 0x04};
+        byte[] other = new byte[]{(byte) 0xE4, 0x00};
+        assertArrayEquals("PERM-AR-DO added", TestUtils.concatByteArray(nfc, perm), merge(nfc, perm, false));
+        assertArrayEquals("PERM-AR-DO kept", TestUtils.concatByteArray(both, nfc, perm),
+                merge(TestUtils.concatByteArray(nfc, perm), both, false));
+        assertArrayEquals("PERM-AR-DO replaced", TestUtils.concatByteArray(nfc, perm1, other),
+                merge(TestUtils.concatByteArray(nfc, perm, other), perm1, false));
+        assertArrayEquals("PERM-AR-DO removed", TestUtils.concatByteArray(nfc, other),
+                merge(TestUtils.concatByteArray(nfc, perm, other), perm, true));
+        assertArrayEquals("different PERM-AR-DO kept", TestUtils.concatByteArray(nfc, perm),
+                merge(TestUtils.concatByteArray(nfc, perm), perm1, true));
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import fr.bmartel.aram.util.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test REF-DO lookup cache.
+ *
+ * @author Bertrand Martel
+ */
+public class LookupCacheTest {
+
+    private final static byte[] RULE = new byte[]{0x05, 0x06, 0x07, 0x08};
+
+    @Before
+    public void initTest() throws NoSuchFieldException, IllegalAccessException {
+        TestUtils.resetStaticFields(RuleEntry.class, "first", "deleted", "size", "tombstones");
+        TestUtils.resetStaticFields(AidGroup.class, "first", "deleted");
+        TestUtils.resetStaticFields(HashSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(RuleSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(AidTrie.class, "label");
+        TestUtils.resetStaticFields(RuleFilter.class, "bits");
+        TestUtils.resetStaticFields(LookupCache.class, "keys");
+    }
+
+    @After
+    public void cleanTest() throws NoSuchFieldException, IllegalAccessException {
+        initTest();
+    }
+
+    /**
+     * Build a key as aid (5 bytes) followed by hash (3 bytes).
+     */
+    private byte[] buildKey(int index) {
+        return new byte[]{(byte) 0xA0, 0x00, 0x00, 0x01, (byte) index, 0x01, 0x02, (byte) index};
+    }
+
+    private RuleEntry addItem(byte[] key) {
+        RuleEntry entry = RuleEntry.getInstance();
+        entry.setAid(key, (short) 0, (byte) 5);
+        entry.setHash(key, (short) 5, (byte) 3);
+        entry.setRule(RULE, (short) 0, (byte) RULE.length);
+        return entry;
+    }
+
+    private RuleEntry search(byte[] key) {
+        return RuleEntry.searchAidHash(key, (short) 0, (byte) 5, (short) 5, (byte) 3);
+    }
+
+    private boolean isCached(byte[] key) {
+        short hits = LookupCache.getHits();
+        LookupCache.lookup(key, (short) 0, (byte) 5, (short) 5, (byte) 3);
+        return LookupCache.getHits() != hits;
+    }
+
+    @Test
+    public void positiveAndNegative() {
+        RuleEntry entry = addItem(buildKey(1));
+        assertSame(entry, search(buildKey(1)));
+        assertNull(search(buildKey(2)));
+        assertEquals("misses", 2, LookupCache.getMisses());
+
+        assertSame(entry, search(buildKey(1)));
+        assertNull(search(buildKey(2)));
+        assertEquals("hits", 2, LookupCache.getHits());
+        assertEquals("misses", 2, LookupCache.getMisses());
+    }
+
+    @Test
+    public void invalidateOnStoreAndDelete() {
+        byte[] key = buildKey(1);
+        assertNull(search(key));
+        RuleEntry entry = addItem(key);
+        assertFalse("invalidated on store", isCached(key));
+        assertSame(entry, search(key));
+        RuleEntry.deleteAid(key, (short) 0, (byte) 5);
+        assertFalse("invalidated on delete", isCached(key));
+        assertNull(search(key));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        for (int i = 0; i < LookupCache.SLOTS; i++) {
+            search(buildKey(i));
+        }
+        //key 0 becomes most recently used, key 1 is evicted
+        search(buildKey(0));
+        search(buildKey(LookupCache.SLOTS));
+        assertFalse("evicted key", isCached(buildKey(1)));
+        assertTrue(isCached(buildKey(0)));
+        assertTrue(isCached(buildKey(LookupCache.SLOTS)));
+    }
+}
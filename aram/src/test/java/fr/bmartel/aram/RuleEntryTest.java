@@ -24,9 +24,13 @@
 package fr.bmartel.aram;
 
 import fr.bmartel.aram.util.TestUtils;
+import javacard.framework.JCSystem;
+import javacard.framework.Shareable;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 
 import static org.junit.Assert.*;
@@ -101,6 +105,21 @@ public class RuleEntryTest {
         return (RuleEntry) f.get(entry);
     }
 
+    /**
+     * Get aid group property by reflection.
+     *
+     * @param entry Rule Entry instance
+     * @return aid group
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private AidGroup getAidGroup(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(entry.getClass(), "group");
+        if (f == null)
+            throw new NoSuchFieldException();
+        return (AidGroup) f.get(entry);
+    }
+
     /**
      * Get aid length property by reflection.
      *
@@ -110,10 +129,55 @@ public class RuleEntryTest {
      * @throws IllegalAccessException
      */
     private byte getAidLength(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "aidLength");
+        AidGroup group = getAidGroup(entry);
+        if (group == null)
+            return 0;
+        Field f = TestUtils.getField(AidGroup.class, "aidLength");
         if (f == null)
             throw new NoSuchFieldException();
-        return f.getByte(entry);
+        return f.getByte(group);
+    }
+
+    /**
+     * Get the number of aid groups.
+     *
+     * @return number of active aid groups
+     */
+    private int getAidGroupCount() {
+        int length = 0;
+        for (AidGroup group = AidGroup.getFirst(); group != null; group = group.getNext()) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Get the number of entries in an aid group.
+     *
+     * @param group aid group
+     * @return number of entries sharing this aid
+     */
+    private int getGroupLength(AidGroup group) {
+        int length = 0;
+        for (RuleEntry current = group.getEntries(); current != null; current = current.getGroupNext()) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Get hash slot property by reflection.
+     *
+     * @param entry Rule entry instance
+     * @return hash slot
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private HashSlot getHashSlot(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(entry.getClass(), "hash");
+        if (f == null)
+            throw new NoSuchFieldException();
+        return (HashSlot) f.get(entry);
     }
 
     /**
@@ -125,10 +189,67 @@ public class RuleEntryTest {
      * @throws IllegalAccessException
      */
     private byte getHashLength(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "hashLength");
+        HashSlot slot = getHashSlot(entry);
+        if (slot == null)
+            return 0;
+        Field f = TestUtils.getField(HashSlot.class, "hashLength");
+        if (f == null)
+            throw new NoSuchFieldException();
+        return f.getByte(slot);
+    }
+
+    /**
+     * Get the number of hash slots in the shared pool.
+     *
+     * @return number of active hash slots
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private int getHashSlotCount() throws NoSuchFieldException, IllegalAccessException {
+        Field first = TestUtils.getField(HashSlot.class, "first");
+        Field next = TestUtils.getField(HashSlot.class, "next");
+        if (first == null || next == null)
+            throw new NoSuchFieldException();
+        int length = 0;
+        for (Object slot = first.get(null); slot != null; slot = next.get(slot)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Get number of recycled objects of a pool by reflection.
+     *
+     * @param pool pool class
+     * @return length of the free list
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private int getDeletedCount(Class pool) throws NoSuchFieldException, IllegalAccessException {
+        Field deleted = TestUtils.getField(pool, "deleted");
+        Field next = TestUtils.getField(pool, "next");
+        if (deleted == null || next == null)
+            throw new NoSuchFieldException();
+        int length = 0;
+        for (Object item = deleted.get(null); item != null; item = next.get(item)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Get rule slot property by reflection.
+     *
+     * @param entry Rule entry instance
+     * @return rule slot
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private RuleSlot getRuleSlot(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
+        Field f = TestUtils.getField(entry.getClass(), "rule");
         if (f == null)
             throw new NoSuchFieldException();
-        return f.getByte(entry);
+        return (RuleSlot) f.get(entry);
     }
 
     /**
@@ -140,10 +261,32 @@ public class RuleEntryTest {
      * @throws IllegalAccessException
      */
     private byte getRuleLength(RuleEntry entry) throws NoSuchFieldException, IllegalAccessException {
-        Field f = TestUtils.getField(entry.getClass(), "ruleLength");
+        RuleSlot slot = getRuleSlot(entry);
+        if (slot == null)
+            return 0;
+        Field f = TestUtils.getField(RuleSlot.class, "ruleLength");
         if (f == null)
             throw new NoSuchFieldException();
-        return f.getByte(entry);
+        return f.getByte(slot);
+    }
+
+    /**
+     * Get the number of rule slots in the shared pool.
+     *
+     * @return number of active rule slots
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    private int getRuleSlotCount() throws NoSuchFieldException, IllegalAccessException {
+        Field first = TestUtils.getField(RuleSlot.class, "first");
+        Field next = TestUtils.getField(RuleSlot.class, "next");
+        if (first == null || next == null)
+            throw new NoSuchFieldException();
+        int length = 0;
+        for (Object slot = first.get(null); slot != null; slot = next.get(slot)) {
+            length++;
+        }
+        return length;
     }
 
     /**
@@ -170,12 +313,12 @@ public class RuleEntryTest {
      * @throws NoSuchFieldException
      */
     private void checkDataSize(RuleEntry entry) throws IllegalAccessException, NoSuchFieldException {
-        assertNotNull("aid array not null", getByteArray(entry, "aid"));
-        assertEquals("aid array size check", getByteArray(entry, "aid").length, AccessRuleMaster.SIZE_AID);
-        assertNotNull("hash array not null", getByteArray(entry, "hash"));
-        assertEquals("hash array size check", getByteArray(entry, "hash").length, AccessRuleMaster.SIZE_HASH);
-        assertNotNull("rule array not null", getByteArray(entry, "rule"));
-        assertEquals("rule array size check", getByteArray(entry, "rule").length, AccessRuleMaster.SIZE_RULE);
+        assertNotNull("aid group not null", getAidGroup(entry));
+        assertEquals("aid array size check", getByteArray(getAidGroup(entry), "aid").length, AccessRuleMaster.SIZE_AID);
+        assertNotNull("hash slot not null", getHashSlot(entry));
+        assertEquals("hash array size check", getByteArray(getHashSlot(entry), "hash").length, AccessRuleMaster.SIZE_HASH);
+        assertNotNull("rule slot not null", getRuleSlot(entry));
+        assertEquals("rule array size check", getByteArray(getRuleSlot(entry), "rule").length, AccessRuleMaster.SIZE_RULE);
     }
 
     private void addItem(byte[] aid, byte[] hash, byte[] rule) throws NoSuchFieldException, IllegalAccessException {
@@ -246,6 +389,17 @@ public class RuleEntryTest {
         return length;
     }
 
+    /**
+     * Check that each entry of the active list is back-linked to its predecessor.
+     */
+    private void checkBackLinks() {
+        RuleEntry previous = null;
+        for (RuleEntry current = RuleEntry.getFirst(); current != null; current = current.getNext()) {
+            assertEquals("back-link check", previous, current.getPrevious());
+            previous = current;
+        }
+    }
+
     @Before
     public void initTest() throws NoSuchFieldException, IllegalAccessException {
         Field f = TestUtils.getField(RuleEntry.class, "first");
@@ -256,10 +410,53 @@ public class RuleEntryTest {
         if (f == null)
             throw new NoSuchFieldException();
         f.set(null, null);
+        TestUtils.resetStaticFields(RuleEntry.class, "size", "tombstones");
+        f = TestUtils.getField(HashSlot.class, "first");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(HashSlot.class, "deleted");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(AidGroup.class, "first");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(AidGroup.class, "deleted");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(AidTrie.class, "label");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(RuleSlot.class, "first");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(RuleSlot.class, "deleted");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(RuleFilter.class, "bits");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        f = TestUtils.getField(LookupCache.class, "keys");
+        if (f == null)
+            throw new NoSuchFieldException();
+        f.set(null, null);
+        TestUtils.resetStaticFields(HeatCounter.class, "entries");
         assertNull("no first element", getFirst());
         assertNull("no item to recycle", getDeleted());
     }
 
+    @After
+    public void cleanTest() throws NoSuchFieldException, IllegalAccessException {
+        initTest();
+    }
+
     @Test
     public void setPropertiesTest() throws NoSuchFieldException, IllegalAccessException {
         addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
@@ -349,6 +546,26 @@ public class RuleEntryTest {
         assertEquals("length after deletion", 0, getLength());
     }
 
+    @Test
+    public void deleteHeadMiddleTailTest() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        addItem(AID_BASIC2, HASH_BASIC2, RULE_BASIC2);
+        addItem(AID_BASIC3, HASH_BASIC3, RULE_BASIC3);
+        checkBackLinks();
+        deleteAid(AID_BASIC2);
+        assertEquals("length after middle deletion", 3, getLength());
+        checkBackLinks();
+        deleteAid(AID_BASIC3);
+        assertEquals("length after head deletion", 2, getLength());
+        checkBackLinks();
+        deleteAid(AID_BASIC);
+        assertEquals("length after tail deletion", 1, getLength());
+        checkBackLinks();
+        checkData(RuleEntry.getFirst(), AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        assertNull("no next element", RuleEntry.getFirst().getNext());
+    }
+
     @Test
     public void deleteAllTest() throws NoSuchFieldException, IllegalAccessException {
         addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
@@ -526,6 +743,99 @@ public class RuleEntryTest {
         }
     }
 
+    @Test
+    public void sharedHashSlot() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        RuleEntry entry1 = entry;
+        addItem(AID_BASIC1, HASH_BASIC, RULE_BASIC1);
+        RuleEntry entry2 = entry;
+        addItem(AID_BASIC2, HASH_BASIC1, RULE_BASIC2);
+        assertEquals("distinct hashes stored once", 2, getHashSlotCount());
+        assertSame("same hash shares slot", getHashSlot(entry1), getHashSlot(entry2));
+        assertEquals("shared slot reference count", 2, getHashSlot(entry1).getRefCount());
+        checkData(entry2, AID_BASIC1, HASH_BASIC, RULE_BASIC1);
+
+        deleteAid(AID_BASIC);
+        RuleEntry.purge();
+        assertEquals("slot kept while referenced", 2, getHashSlotCount());
+        assertEquals("reference count after deletion", 1, getHashSlot(entry2).getRefCount());
+        checkData(entry2, AID_BASIC1, HASH_BASIC, RULE_BASIC1);
+
+        deleteAid(AID_BASIC1);
+        RuleEntry.purge();
+        assertEquals("slot freed with last reference", 1, getHashSlotCount());
+    }
+
+    @Test
+    public void updateHashReleasesSlot() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        entry.setHash(HASH_BASIC1, (short) 0, (byte) HASH_BASIC1.length);
+        assertEquals("previous hash slot released", 1, getHashSlotCount());
+        checkData(entry, AID_BASIC, HASH_BASIC1, RULE_BASIC);
+        entry.setHash(HASH_BASIC1, (short) 0, (byte) HASH_BASIC1.length);
+        assertEquals("same hash keeps its slot", 1, getHashSlot(entry).getRefCount());
+    }
+
+    @Test
+    public void sharedRuleSlot() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        RuleEntry entry1 = entry;
+        addItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC);
+        RuleEntry entry2 = entry;
+        assertEquals("identical rules stored once", 1, getRuleSlotCount());
+        assertSame("same rule shares slot", getRuleSlot(entry1), getRuleSlot(entry2));
+        assertEquals("shared slot reference count", 2, getRuleSlot(entry1).getRefCount());
+
+        entry2.setRule(RULE_BASIC1, (short) 0, (byte) RULE_BASIC1.length);
+        assertEquals("updated rule copied to its own slot", 2, getRuleSlotCount());
+        assertNotSame("updated rule not shared anymore", getRuleSlot(entry1), getRuleSlot(entry2));
+        checkData(entry1, AID_BASIC, HASH_BASIC, RULE_BASIC);
+        checkData(entry2, AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+
+        deleteAid(AID_BASIC);
+        RuleEntry.purge();
+        assertEquals("slot freed with last reference", 1, getRuleSlotCount());
+        checkData(entry2, AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+    }
+
+    @Test
+    public void aidGroups() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC1, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC, HASH_BASIC1, RULE_BASIC1);
+        addItem(AID_BASIC, HASH_BASIC2, RULE_BASIC2);
+        assertEquals("one group per aid", 2, getAidGroupCount());
+        AidGroup group = getAidGroup(entry);
+        assertEquals("entries sharing aid", 3, getGroupLength(group));
+        assertSame("search by aid returns group entry", group, getAidGroup(RuleEntry.searchAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length)));
+
+        RuleEntry re = RuleEntry.searchAidHash(TestUtils.concatByteArray(AID_BASIC, HASH_BASIC1),
+                (short) 0, (byte) AID_BASIC.length, (short) AID_BASIC.length, (byte) HASH_BASIC1.length);
+        assertNotNull(re);
+        checkData(re, AID_BASIC, HASH_BASIC1, RULE_BASIC1);
+        assertNull("hash not granted for this aid", RuleEntry.searchAidHash(TestUtils.concatByteArray(AID_BASIC1, HASH_BASIC1),
+                (short) 0, (byte) AID_BASIC1.length, (short) AID_BASIC1.length, (byte) HASH_BASIC1.length));
+
+        deleteAidHash(TestUtils.concatByteArray(AID_BASIC, HASH_BASIC1),
+                (short) 0, (byte) AID_BASIC.length, (short) AID_BASIC.length, (byte) HASH_BASIC1.length);
+        assertEquals("entries left in group", 2, getGroupLength(group));
+        checkBackLinks();
+
+        deleteAid(AID_BASIC);
+        assertEquals("group released with its entries", 1, getAidGroupCount());
+        assertEquals("length after deletion", 1, getLength());
+        checkData(RuleEntry.getFirst(), AID_BASIC1, HASH_BASIC, RULE_BASIC);
+    }
+
+    @Test
+    public void updateAidMovesGroup() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        entry.setAid(AID_BASIC1, (short) 0, (byte) AID_BASIC1.length);
+        assertEquals("previous group released", 1, getAidGroupCount());
+        assertNull("old aid not found", RuleEntry.searchAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length));
+        checkSearchedItem(AID_BASIC1, HASH_BASIC, RULE_BASIC);
+    }
+
     @Test
     public void searchAidHash() throws NoSuchFieldException, IllegalAccessException {
         addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
@@ -543,4 +853,305 @@ public class RuleEntryTest {
         assertArrayEquals(HASH_BASIC, hashData);
         assertArrayEquals(RULE_BASIC, ruleData);
     }
+
+    @Test
+    public void compact() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        RuleEntry.deleteAll();
+        assertEquals("recycled entries", 2, getDeletedCount(RuleEntry.class));
+        assertEquals("recycled groups", 2, getDeletedCount(AidGroup.class));
+        assertEquals("recycled hash slots", 2, getDeletedCount(HashSlot.class));
+        assertEquals("recycled rule slots", 2, getDeletedCount(RuleSlot.class));
+
+        if (JCSystem.isObjectDeletionSupported()) {
+            assertEquals("bounded compaction", 3, RuleEntry.compact((short) 3));
+            assertEquals(0, getDeletedCount(RuleEntry.class));
+            assertEquals(1, getDeletedCount(AidGroup.class));
+            assertEquals(2, getDeletedCount(HashSlot.class));
+
+            assertEquals("remaining objects", 5, RuleEntry.compact((short) 0x7FFF));
+            assertEquals(0, getDeletedCount(AidGroup.class));
+            assertEquals(0, getDeletedCount(HashSlot.class));
+            assertEquals(0, getDeletedCount(RuleSlot.class));
+            assertEquals("nothing left", 0, RuleEntry.compact((short) 0x7FFF));
+
+            addItem(AID_BASIC2, HASH_BASIC2, RULE_BASIC2);
+            checkSearchedItem(AID_BASIC2, HASH_BASIC2, RULE_BASIC2);
+        } else {
+            assertEquals("nothing dropped without object deletion", 0, RuleEntry.compact((short) 0x7FFF));
+            assertEquals(2, getDeletedCount(RuleEntry.class));
+            assertEquals(2, getDeletedCount(AidGroup.class));
+            assertEquals(2, getDeletedCount(HashSlot.class));
+            assertEquals(2, getDeletedCount(RuleSlot.class));
+        }
+    }
+
+    @Test
+    public void compactAbove() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        RuleEntry.deleteAll();
+
+        assertEquals("reserve not reached", 0, RuleEntry.compactAbove((short) 8, (short) 16));
+        assertEquals(2, getDeletedCount(RuleEntry.class));
+
+        if (JCSystem.isObjectDeletionSupported()) {
+            assertEquals("excess bounded by budget", 2, RuleEntry.compactAbove((short) 3, (short) 2));
+            assertEquals("excess dropped", 3, RuleEntry.compactAbove((short) 3, (short) 16));
+            assertEquals("reserve kept", 0, RuleEntry.compactAbove((short) 3, (short) 16));
+            assertEquals(1, getDeletedCount(HashSlot.class));
+            assertEquals(2, getDeletedCount(RuleSlot.class));
+        } else {
+            assertEquals("nothing dropped without object deletion", 0, RuleEntry.compactAbove((short) 0, (short) 16));
+        }
+    }
+
+    @Test
+    public void tombstoneDelete() throws NoSuchFieldException, IllegalAccessException {
+        addItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        addItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        addItem(AID_BASIC2, HASH_BASIC2, RULE_BASIC2);
+        RuleEntry entry2 = entry;
+        addItem(AID_BASIC3, HASH_BASIC3, RULE_BASIC3);
+
+        deleteAid(AID_BASIC2);
+        assertNull("nothing recycled below threshold", getDeleted());
+        assertSame("deleted entry still linked", entry2, getNext(entry));
+        assertEquals("deleted entry skipped", 3, getLength());
+        assertNull("deleted entry not found", RuleEntry.searchAid(AID_BASIC2, (short) 0, (byte) AID_BASIC2.length));
+        assertNull("deleted entry not found", RuleEntry.searchAidHash(TestUtils.concatByteArray(AID_BASIC2, HASH_BASIC2),
+                (short) 0, (byte) AID_BASIC2.length, (short) AID_BASIC2.length, (byte) HASH_BASIC2.length));
+        checkBackLinks();
+
+        deleteAid(AID_BASIC);
+        assertNull("nothing recycled at threshold", getDeleted());
+        assertEquals(2, getLength());
+
+        deleteAid(AID_BASIC3);
+        assertNotNull("entries recycled above threshold", getDeleted());
+        assertEquals(1, getLength());
+        assertEquals("deleted entries unlinked", RuleEntry.getFirst(), getFirst());
+        assertNull(getNext(getFirst()));
+        checkData(RuleEntry.getFirst(), AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+    }
+
+    private RuleEntry storeItem(byte[] aid, byte[] hash, byte[] rule) {
+        RuleEntry item = RuleEntry.getInstance();
+        item.setAid(aid, (short) 0, (byte) aid.length);
+        item.setHash(hash, (short) 0, (byte) hash.length);
+        item.setRule(rule, (short) 0, (byte) rule.length);
+        return item;
+    }
+
+    @Test
+    public void unchangedValues() throws NoSuchFieldException, IllegalAccessException {
+        RuleEntry item = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        HashSlot slot = getHashSlot(item);
+        RuleSlot ruleSlot = getRuleSlot(item);
+
+        RuleEntry item1 = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        assertSame("shared hash slot", slot, getHashSlot(item1));
+        assertSame("shared rule slot", ruleSlot, getRuleSlot(item1));
+
+        item.setHash(HASH_BASIC, (short) 0, (byte) HASH_BASIC.length);
+        item.setRule(RULE_BASIC, (short) 0, (byte) RULE_BASIC.length);
+        item.setAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length);
+        assertSame("hash slot kept", slot, getHashSlot(item));
+        assertSame("rule slot kept", ruleSlot, getRuleSlot(item));
+        assertEquals("reference count unchanged", 2, slot.getRefCount());
+        assertEquals("reference count unchanged", 2, ruleSlot.getRefCount());
+
+        RuleEntry.deleteAll();
+        item = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        assertSame("recycled hash slot reused", slot, getHashSlot(item));
+        assertSame("recycled rule slot reused", ruleSlot, getRuleSlot(item));
+        checkData(item, AID_BASIC, HASH_BASIC, RULE_BASIC);
+    }
+
+    @Test
+    public void writeBudget() {
+        AramUtils.resetWriteCount();
+        storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        assertEquals("new values written once", AID_BASIC.length + HASH_BASIC.length + RULE_BASIC.length, AramUtils.getWriteCount());
+
+        AramUtils.resetWriteCount();
+        storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        assertEquals("shared values not written", 0, AramUtils.getWriteCount());
+
+        AramUtils.resetWriteCount();
+        RuleEntry.deleteAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length);
+        RuleEntry.purge();
+        assertEquals("delete writes no value", 0, AramUtils.getWriteCount());
+
+        storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        assertEquals("dirty slots reused as is", 0, AramUtils.getWriteCount());
+
+        RuleEntry.deleteAll();
+        AramUtils.resetWriteCount();
+        storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC1);
+        assertEquals("only the changed rule written", RULE_BASIC1.length, AramUtils.getWriteCount());
+    }
+
+    @Test
+    public void heatOrder() {
+        RuleEntry item = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        RuleEntry item1 = storeItem(AID_BASIC, HASH_BASIC1, RULE_BASIC1);
+        RuleEntry item2 = storeItem(AID_BASIC, HASH_BASIC2, RULE_BASIC2);
+        RuleEntry head = RuleEntry.searchAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length);
+        RuleEntry tail = head.getGroupNext().getGroupNext();
+
+        HeatCounter.hit(tail);
+        HeatCounter.hit(tail);
+        HeatCounter.hit(item1);
+        assertEquals("hits pending in RAM", 0, tail.getHeat());
+        HeatCounter.flush();
+        assertEquals("hits flushed", 2, tail.getHeat());
+        assertEquals("hits flushed", 1, item1.getHeat());
+
+        RuleEntry.sortByHeat();
+        RuleEntry re = RuleEntry.searchAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length);
+        assertSame("hottest first", tail, re);
+        re = re.getGroupNext();
+        assertSame("second hottest", item1, re);
+        assertEquals("heat halved by sort", 1, tail.getHeat());
+        assertEquals("heat halved by sort", 0, item1.getHeat());
+        re = re.getGroupNext();
+        assertEquals("cold last", 0, re.getHeat());
+        assertNull("end of group", re.getGroupNext());
+        byte[] key = TestUtils.concatByteArray(AID_BASIC, HASH_BASIC2);
+        assertSame("search path", item2,
+                RuleEntry.searchAidHash(key, (short) 0, (byte) AID_BASIC.length, (short) AID_BASIC.length, (byte) HASH_BASIC2.length));
+
+        for (short i = 0; i < 300; i++) {
+            HeatCounter.hit(item);
+        }
+        HeatCounter.flush();
+        assertEquals("heat saturated", 0xFF, item.getHeat());
+        HeatCounter.hit(item2);
+        HeatCounter.flush();
+        RuleEntry.sortByHeat();
+        assertEquals("saturated heat decays", 0x7F, item.getHeat());
+        RuleEntry.sortByHeat();
+        assertEquals("saturated heat decays", 0x3F, item.getHeat());
+
+        RuleEntry.deleteAll();
+        assertEquals("heat cleared on reuse", 0, storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC).getHeat());
+    }
+
+    @Test
+    public void sharedLookup() {
+        storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        storeItem(AID_BASIC1, HASH_BASIC1, RULE_BASIC1);
+        AccessRuleLookup lookup = new RuleLookup();
+
+        byte[] buf = new byte[64];
+        System.arraycopy(AID_BASIC1, 0, buf, 0, AID_BASIC1.length);
+        System.arraycopy(HASH_BASIC1, 0, buf, AID_BASIC1.length, HASH_BASIC1.length);
+        short len = lookup.getRule(buf, (short) 0, (byte) AID_BASIC1.length, (short) AID_BASIC1.length, (byte) HASH_BASIC1.length, (short) 10);
+        assertEquals("rule length", RULE_BASIC1.length, len);
+        for (int i = 0; i < RULE_BASIC1.length; i++) {
+            assertEquals("rule value", RULE_BASIC1[i], buf[10 + i]);
+        }
+
+        System.arraycopy(HASH_BASIC, 0, buf, AID_BASIC1.length, HASH_BASIC.length);
+        assertEquals("no rule", -1, lookup.getRule(buf, (short) 0, (byte) AID_BASIC1.length, (short) AID_BASIC1.length, (byte) HASH_BASIC.length, (short) 10));
+
+        assertEquals("aid too long", -1, lookup.getRule(buf, (short) 0, (byte) (AccessRuleMaster.SIZE_AID + 1), (short) 0, (byte) 0, (short) 40));
+        assertEquals("negative aid length", -1, lookup.getRule(buf, (short) 0, (byte) -1, (short) 0, (byte) 0, (short) 40));
+        assertEquals("hash too long", -1, lookup.getRule(buf, (short) 0, (byte) 0, (short) 0, (byte) (AccessRuleMaster.SIZE_HASH + 1), (short) 40));
+        assertFalse("aid too long", lookup.isAllowed(buf, (short) 0, (byte) (AccessRuleMaster.SIZE_AID + 1), (short) 0, (byte) 0, (short) 40));
+        assertFalse("negative hash length", lookup.isAllowed(buf, (short) 0, (byte) 0, (short) 0, (byte) -1, (short) 40));
+    }
+
+    @Test
+    public void shareableLookup() throws Exception {
+        Constructor<AccessRuleMaster> constructor = AccessRuleMaster.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        AccessRuleMaster applet = constructor.newInstance();
+
+        Shareable lookup = applet.getShareableInterfaceObject(null, AccessRuleMaster.SHAREABLE_LOOKUP);
+        assertTrue("rule lookup", lookup instanceof AccessRuleLookup);
+        assertSame("same lookup", lookup, applet.getShareableInterfaceObject(null, AccessRuleMaster.SHAREABLE_LOOKUP));
+        assertNull("unknown parameter", applet.getShareableInterfaceObject(null, (byte) 1));
+    }
+
+    @Test
+    public void apduAccess() {
+        byte[] select = new byte[]{0x00, (byte) 0xA4, 0x04, 0x00};
+        byte[] getData = new byte[]{(byte) 0x80, (byte) 0xCA, (byte) 0x9F, 0x7F};
+        byte[] getDataChannel = new byte[]{(byte) 0x81, (byte) 0xCA, 0x00, 0x66};
+
+        RuleEntry item = storeItem(AID_BASIC, HASH_BASIC, new byte[]{(byte) 0xD0, 0x01, 0x01});
+        assertTrue("always", item.allows(select, (short) 0));
+
+        item.setRule(new byte[]{(byte) 0xD1, 0x01, 0x01, (byte) 0xD0, 0x01, 0x00}, (short) 0, (byte) 6);
+        assertFalse("never", item.allows(select, (short) 0));
+
+        item.setRule(new byte[]{(byte) 0xD1, 0x01, 0x01}, (short) 0, (byte) 3);
+        assertFalse("no APDU-AR-DO", item.allows(select, (short) 0));
+
+        byte[] filters = new byte[]{(byte) 0xD0, 0x10,
+                0x00, (byte) 0xB0, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00,
+                (byte) 0x80, (byte) 0xCA, 0x00, 0x00, (byte) 0xFC, (byte) 0xFF, 0x00, 0x00};
+        item.setRule(filters, (short) 0, (byte) filters.length);
+        assertTrue("second filter", item.allows(getData, (short) 0));
+        assertTrue("masked channel", item.allows(getDataChannel, (short) 0));
+        assertFalse("no filter", item.allows(select, (short) 0));
+
+        item.setRule(new byte[]{(byte) 0xD0, 0x05, 0x01, 0x02}, (short) 0, (byte) 4);
+        assertFalse("truncated APDU-AR-DO", item.allows(select, (short) 0));
+    }
+
+    private RuleEntry resolve(byte[] aid, byte[] hash) {
+        byte[] key = TestUtils.concatByteArray(aid, hash);
+        return RuleEntry.resolve(key, (short) 0, (byte) aid.length, (short) aid.length, (byte) hash.length);
+    }
+
+    @Test
+    public void resolveWildcard() {
+        byte[] none = new byte[]{};
+        assertNull("no rule", resolve(AID_BASIC, HASH_BASIC));
+
+        RuleEntry global = storeItem(none, none, RULE_BASIC);
+        assertSame("global rule", global, resolve(AID_BASIC, HASH_BASIC));
+
+        RuleEntry hashOnly = storeItem(none, HASH_BASIC, RULE_BASIC1);
+        assertSame("hash rule", hashOnly, resolve(AID_BASIC, HASH_BASIC));
+        assertSame("global rule for other hash", global, resolve(AID_BASIC, HASH_BASIC1));
+
+        RuleEntry aidOnly = storeItem(AID_BASIC, none, RULE_BASIC2);
+        assertSame("aid rule", aidOnly, resolve(AID_BASIC, HASH_BASIC));
+        assertSame("hash rule for other aid", hashOnly, resolve(AID_BASIC1, HASH_BASIC));
+
+        RuleEntry exact = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC3);
+        assertSame("exact rule", exact, resolve(AID_BASIC, HASH_BASIC));
+        assertSame("aid rule for other hash", aidOnly, resolve(AID_BASIC, HASH_BASIC1));
+
+        RuleEntry.deleteAid(AID_BASIC, (short) 0, (byte) AID_BASIC.length);
+        assertSame("hash rule after delete", hashOnly, resolve(AID_BASIC, HASH_BASIC));
+    }
+
+    @Test
+    public void hashIndex() {
+        RuleEntry item = storeItem(AID_BASIC, HASH_BASIC, RULE_BASIC);
+        RuleEntry item1 = storeItem(AID_BASIC1, HASH_BASIC, RULE_BASIC1);
+        RuleEntry item2 = storeItem(AID_BASIC2, HASH_BASIC1, RULE_BASIC2);
+        HashSlot slot = HashSlot.search(HASH_BASIC, (short) 0, (byte) HASH_BASIC.length);
+
+        assertSame("last stored first", item1, RuleEntry.getHashFirst(slot));
+        assertSame("same hash", item, item1.getHashNext());
+        assertNull("end of hash list", item.getHashNext());
+
+        item2.setHash(HASH_BASIC, (short) 0, (byte) HASH_BASIC.length);
+        assertSame("joined on hash update", item2, RuleEntry.getHashFirst(slot));
+        assertNull("left previous hash", HashSlot.search(HASH_BASIC1, (short) 0, (byte) HASH_BASIC1.length));
+
+        RuleEntry.deleteAid(AID_BASIC1, (short) 0, (byte) AID_BASIC1.length);
+        assertSame("deleted entry skipped", item, item2.getHashNext());
+        RuleEntry.purge();
+        assertSame("purged entry unlinked", item, item2.getHashNext());
+        RuleEntry.deleteAll();
+        assertNull("empty after delete all", HashSlot.search(HASH_BASIC, (short) 0, (byte) HASH_BASIC.length));
+    }
 }
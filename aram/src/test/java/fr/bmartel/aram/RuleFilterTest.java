@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import fr.bmartel.aram.util.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test Bloom filter over REF-DO keys.
+ *
+ * @author Bertrand Martel
+ */
+public class RuleFilterTest {
+
+    private final static byte[] RULE = new byte[]{0x05, 0x06, 0x07, 0x08};
+
+    private final static int STORED_KEYS = 32;
+
+    private final static int PROBED_KEYS = 1024;
+
+    @Before
+    public void initTest() throws NoSuchFieldException, IllegalAccessException {
+        TestUtils.resetStaticFields(RuleEntry.class, "first", "deleted", "size", "tombstones");
+        TestUtils.resetStaticFields(AidGroup.class, "first", "deleted");
+        TestUtils.resetStaticFields(HashSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(RuleSlot.class, "first", "deleted");
+        TestUtils.resetStaticFields(AidTrie.class, "label");
+        TestUtils.resetStaticFields(RuleFilter.class, "bits");
+        TestUtils.resetStaticFields(LookupCache.class, "keys");
+    }
+
+    @After
+    public void cleanTest() throws NoSuchFieldException, IllegalAccessException {
+        initTest();
+    }
+
+    /**
+     * Build a key as aid (16 bytes) followed by hash (20 bytes).
+     */
+    private byte[] buildKey(int aidIndex, int hashIndex) {
+        byte[] key = new byte[AccessRuleMaster.SIZE_AID + AccessRuleMaster.SIZE_HASH];
+        key[0] = (byte) 0xA0;
+        key[1] = (byte) (aidIndex >> 8);
+        key[2] = (byte) aidIndex;
+        key[AccessRuleMaster.SIZE_AID] = (byte) (hashIndex >> 8);
+        key[AccessRuleMaster.SIZE_AID + 1] = (byte) hashIndex;
+        return key;
+    }
+
+    private RuleEntry addItem(byte[] key) {
+        RuleEntry entry = RuleEntry.getInstance();
+        entry.setAid(key, (short) 0, (byte) AccessRuleMaster.SIZE_AID);
+        entry.setHash(key, AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH);
+        entry.setRule(RULE, (short) 0, (byte) RULE.length);
+        return entry;
+    }
+
+    private boolean mightContain(byte[] key) {
+        return RuleFilter.mightContain(key, (short) 0, (byte) AccessRuleMaster.SIZE_AID,
+                AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH);
+    }
+
+    @Test
+    public void emptyFilter() {
+        assertFalse(mightContain(buildKey(1, 1)));
+        assertNull(RuleEntry.searchAidHash(buildKey(1, 1), (short) 0, (byte) AccessRuleMaster.SIZE_AID,
+                AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH));
+    }
+
+    @Test
+    public void noFalseNegative() {
+        for (int i = 0; i < STORED_KEYS; i++) {
+            addItem(buildKey(i, i % 4));
+        }
+        for (int i = 0; i < STORED_KEYS; i++) {
+            byte[] key = buildKey(i, i % 4);
+            assertTrue("stored key", mightContain(key));
+            assertNotNull(RuleEntry.searchAidHash(key, (short) 0, (byte) AccessRuleMaster.SIZE_AID,
+                    AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH));
+        }
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        for (int i = 0; i < STORED_KEYS; i++) {
+            addItem(buildKey(i, i));
+        }
+        int positives = 0;
+        for (int i = 0; i < PROBED_KEYS; i++) {
+            if (mightContain(buildKey(i, i + 1)))
+                positives++;
+        }
+        assertTrue("false positive rate " + positives + "/" + PROBED_KEYS, positives * 20 < PROBED_KEYS);
+    }
+
+    @Test
+    public void updateHashKeepsKey() {
+        RuleEntry entry = addItem(buildKey(1, 1));
+        byte[] key = buildKey(1, 2);
+        entry.setHash(key, AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH);
+        assertTrue("updated key", mightContain(key));
+    }
+
+    @Test
+    public void rebuildOnPurge() {
+        byte[] key1 = buildKey(1, 1);
+        byte[] key2 = buildKey(2, 2);
+        byte[] key3 = buildKey(3, 3);
+        addItem(key1);
+        addItem(key2);
+        addItem(key3);
+        RuleEntry.deleteAidHash(key1, (short) 0, (byte) AccessRuleMaster.SIZE_AID,
+                AccessRuleMaster.SIZE_AID, (byte) AccessRuleMaster.SIZE_HASH);
+        assertTrue("deleted key kept until purge", mightContain(key1));
+        RuleEntry.purge();
+        assertFalse("deleted key", mightContain(key1));
+        assertTrue("remaining key", mightContain(key2));
+        RuleEntry.deleteAll();
+        assertFalse("all keys deleted", mightContain(key2));
+    }
+
+    @Test
+    public void tornRebuild() throws NoSuchFieldException, IllegalAccessException {
+        byte[] key = buildKey(1, 1);
+        addItem(key);
+        Field bits = TestUtils.getField(RuleFilter.class, "bits");
+        Field valid = TestUtils.getField(RuleFilter.class, "valid");
+        byte[] value = (byte[]) bits.get(null);
+        for (int i = 0; i < value.length; i++) {
+            value[i] = 0;
+        }
+        valid.set(null, false);
+        assertTrue("filter rebuilt on lookup", mightContain(key));
+    }
+}
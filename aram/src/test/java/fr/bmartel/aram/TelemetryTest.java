@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2017 Bertrand Martel
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.bmartel.aram;
+
+import fr.bmartel.aram.util.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test operation counters.
+ *
+ * @author Bertrand Martel
+ */
+public class TelemetryTest {
+
+    @Before
+    public void initTest() throws NoSuchFieldException, IllegalAccessException {
+        TestUtils.resetStaticFields(Telemetry.class, "totals");
+    }
+
+    private byte[] getTotals() throws IllegalAccessException {
+        Field f = TestUtils.getField(Telemetry.class, "totals");
+        assertNotNull(f);
+        return (byte[]) f.get(null);
+    }
+
+    @Test
+    public void batchedFlush() throws IllegalAccessException {
+        Telemetry.count(Telemetry.STORE);
+        Telemetry.count(Telemetry.STORE);
+        Telemetry.count(Telemetry.BYTES_STREAMED, (short) 200);
+        assertEquals(2, Telemetry.get(Telemetry.STORE));
+        assertEquals(200, Telemetry.get(Telemetry.BYTES_STREAMED));
+        assertArrayEquals("nothing persisted before flush", new byte[Telemetry.COUNTERS * 2], getTotals());
+
+        Telemetry.flush();
+        byte[] totals = getTotals();
+        assertEquals(2, totals[Telemetry.STORE * 2 + 1]);
+        assertEquals(2, Telemetry.get(Telemetry.STORE));
+
+        Telemetry.count(Telemetry.STORE);
+        assertEquals("persisted total plus pending", 3, Telemetry.get(Telemetry.STORE));
+    }
+
+    @Test
+    public void saturate() {
+        for (int i = 0; i < 200; i++) {
+            Telemetry.count(Telemetry.BYTES_STREAMED, (short) 255);
+        }
+        assertEquals("saturated", 0x7FFF, Telemetry.get(Telemetry.BYTES_STREAMED));
+        Telemetry.flush();
+        assertEquals(0x7FFF, Telemetry.get(Telemetry.BYTES_STREAMED));
+    }
+
+    @Test
+    public void reset() {
+        Telemetry.count(Telemetry.DELETE);
+        Telemetry.flush();
+        Telemetry.count(Telemetry.DELETE);
+        Telemetry.reset();
+        assertEquals(0, Telemetry.get(Telemetry.DELETE));
+    }
+}
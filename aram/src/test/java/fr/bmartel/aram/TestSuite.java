@@ -22,6 +22,10 @@ import static org.junit.Assert.fail;
 
 @RunWith(Suite.class)
 @SuiteClasses({RuleEntryTest.class,
+        AidTrieTest.class,
+        RuleFilterTest.class,
+        LookupCacheTest.class,
+        TelemetryTest.class,
         AramTest.class,
         AramUtilsTest.class})
 public class TestSuite {
@@ -77,7 +77,7 @@ public class TestUtils {
         for (int i = 0; i < offset; i++) {
             resp[i] = 0x00;
         }
-        System.arraycopy(resp, offset, data, 0, data.length);
+        System.arraycopy(data, 0, resp, offset, data.length);
         return resp;
     }
 
@@ -96,22 +96,47 @@ public class TestUtils {
     }
 
     /**
-     * Get class field by reflection.
+     * Get class field by reflection (including fields inherited from super classes).
      *
      * @param object class
      * @param name   field name
      * @return field
      */
     public static Field getField(Class object, String name) {
-        for (Field f : object.getDeclaredFields()) {
-            f.setAccessible(true);
-            if (f != null && f.getName().equals(name)) {
-                return f;
+        for (Class type = object; type != null; type = type.getSuperclass()) {
+            for (Field f : type.getDeclaredFields()) {
+                f.setAccessible(true);
+                if (f != null && f.getName().equals(name)) {
+                    return f;
+                }
             }
         }
         return null;
     }
 
+    /**
+     * Reset static fields of a class by reflection (null or zero for primitive fields).
+     *
+     * @param object class
+     * @param names  field names
+     * @throws NoSuchFieldException
+     * @throws IllegalAccessException
+     */
+    public static void resetStaticFields(Class object, String... names) throws NoSuchFieldException, IllegalAccessException {
+        for (String name : names) {
+            Field f = getField(object, name);
+            if (f == null)
+                throw new NoSuchFieldException(name);
+            if (f.getType() == short.class) {
+                f.setShort(null, (short) 0);
+            } else if (f.getType() == boolean.class) {
+                f.setBoolean(null, false);
+            } else {
+                f.set(null, null);
+            }
+        }
+    }
+
     /**
      * Send command without expectedResponse.
      *